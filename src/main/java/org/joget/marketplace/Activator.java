@@ -24,5 +24,8 @@ public class Activator implements BundleActivator {
         for (ServiceRegistration registration : registrationList) {
             registration.unregister();
         }
+        MergeWorkerPool.shutdown();
+        MergeResultStore.shutdown();
+        MergePDFTool.shutdown();
     }
 }
@@ -0,0 +1,102 @@
+package org.joget.marketplace;
+
+import org.joget.apps.app.model.AppDefinition;
+import org.joget.apps.app.service.AppService;
+
+/**
+ * Configuration of one datalist export, resolved once per action invocation
+ * and shared by every row
+ */
+public class MergeExportContext {
+
+    private final AppDefinition appDef;
+    private final AppService appService;
+    private final String formDefId;
+    private final String fieldId;
+    private final PageSelection pageSelection;
+    private final String fileNameColumn;
+    private final String zipFileName;
+    private final MergeResultStore resultStore;
+    private final long memoryThreshold;
+    private final long spoolThreshold;
+    private final PdfOptimizer optimizer;
+    private final boolean isolated;
+
+    /**
+     * @param appDef
+     * @param appService
+     * @param formDefId
+     * @param fieldId
+     * @param pageSelection pages taken from each uploaded PDF
+     * @param fileNameColumn column used for the PDF file name, empty to use the record id
+     * @param zipFileName
+     * @param resultStore shared result store, null when disabled
+     * @param memoryThreshold
+     * @param spoolThreshold
+     * @param optimizer
+     * @param isolated whether merges run in worker processes
+     */
+    public MergeExportContext(AppDefinition appDef, AppService appService, String formDefId, String fieldId, PageSelection pageSelection, String fileNameColumn,
+            String zipFileName, MergeResultStore resultStore, long memoryThreshold, long spoolThreshold, PdfOptimizer optimizer, boolean isolated) {
+        this.appDef = appDef;
+        this.appService = appService;
+        this.formDefId = formDefId;
+        this.fieldId = fieldId;
+        this.pageSelection = pageSelection;
+        this.fileNameColumn = fileNameColumn;
+        this.zipFileName = zipFileName;
+        this.resultStore = resultStore;
+        this.memoryThreshold = memoryThreshold;
+        this.spoolThreshold = spoolThreshold;
+        this.optimizer = optimizer;
+        this.isolated = isolated;
+    }
+
+    public AppDefinition getAppDef() {
+        return appDef;
+    }
+
+    public AppService getAppService() {
+        return appService;
+    }
+
+    public String getFormDefId() {
+        return formDefId;
+    }
+
+    public String getFieldId() {
+        return fieldId;
+    }
+
+    public PageSelection getPageSelection() {
+        return pageSelection;
+    }
+
+    public String getFileNameColumn() {
+        return fileNameColumn;
+    }
+
+    public String getZipFileName() {
+        return zipFileName;
+    }
+
+    public MergeResultStore getResultStore() {
+        return resultStore;
+    }
+
+    public long getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    public long getSpoolThreshold() {
+        return spoolThreshold;
+    }
+
+    public PdfOptimizer getOptimizer() {
+        return optimizer;
+    }
+
+    public boolean isIsolated() {
+        return isolated;
+    }
+}
@@ -1,7 +1,5 @@
 package org.joget.marketplace;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.pdfbox.multipdf.PDFMergerUtility;
 import org.joget.apps.app.model.AppDefinition;
 import org.joget.apps.app.service.AppService;
 import org.joget.apps.app.service.AppUtil;
@@ -15,15 +13,28 @@ import org.joget.apps.form.service.FormUtil;
 import org.joget.commons.util.LogUtil;
 import org.joget.plugin.base.DefaultApplicationPlugin;
 import org.joget.workflow.model.WorkflowAssignment;
+import org.joget.workflow.util.WorkflowUtil;
 import org.springframework.context.ApplicationContext;
 import org.apache.tika.Tika;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MergePDFTool extends DefaultApplicationPlugin {
 
     private static final String MESSAGE_PATH = "messages/MergePdfTool";
+    private static final int MAX_RESOLVE_THREADS = 8;
+
+    private static ExecutorService resolveExecutor;
 
     @Override
     public Object execute(Map map) {
@@ -43,6 +54,7 @@ public class MergePDFTool extends DefaultApplicationPlugin {
         // Read the list of PDF fields from the "fields" grid
         Object[] fieldsArray = (Object[]) map.get("fields");
         List<String> fieldIdList = new ArrayList<>();
+        List<PageSelection> fieldPageList = new ArrayList<>();
         if (fieldsArray != null && fieldsArray.length > 0) {
             for (Object rowObj : fieldsArray) {
                 if (rowObj instanceof Map) {
@@ -50,6 +62,7 @@ public class MergePDFTool extends DefaultApplicationPlugin {
                     String fieldId = (String) rowMap.get("field");
                     if (fieldId != null && !fieldId.isEmpty()) {
                         fieldIdList.add(fieldId);
+                        fieldPageList.add(PageSelection.fromConfig((String) rowMap.get("pages")));
                     }
                 }
             }
@@ -93,27 +106,58 @@ public class MergePDFTool extends DefaultApplicationPlugin {
             }
 
             // 2) Collect all PDF paths from the specified fields
-            List<String> allPdfPaths = collectAllPdfPaths(sourceForm, formData, fieldIdList);
+            long stageStart = System.nanoTime();
+            List<PageSelection> allPdfPages = new ArrayList<>();
+            List<String> allPdfPaths = collectAllPdfPaths(sourceForm, formData, fieldIdList, fieldPageList, allPdfPages);
+            long collectTime = elapsedMillis(stageStart);
             if (allPdfPaths.isEmpty()) {
                 return null;
             }
 
             // 3) Convert string paths to actual File objects
-            List<File> pdfFiles = convertPathsToFiles(allPdfPaths, sourceForm, sourceFileRecordId);
-            if (pdfFiles.isEmpty()) {
+            stageStart = System.nanoTime();
+            List<MergeSource> pdfSources = convertPathsToFiles(allPdfPaths, allPdfPages, sourceForm, sourceFileRecordId);
+            long resolveTime = elapsedMillis(stageStart);
+            if (pdfSources.isEmpty()) {
                 LogUtil.warn(getClassName(), "No valid PDF files to merge.");
                 return null;
             }
 
-            // 4) Merge the PDF files into a single PDF in memory
-            byte[] mergedPdfBytes = mergePdfFiles(pdfFiles);
-            if (mergedPdfBytes == null || mergedPdfBytes.length == 0) {
+            // 4) Merge the PDF files into a single PDF, in memory or spooled depending on the input size
+            stageStart = System.nanoTime();
+            MergePlan plan = MergePlan.create(MergeSource.toFiles(pdfSources), getPropertyString("memoryThreshold"), getPropertyString("spoolThreshold"));
+            LogUtil.info(getClassName(), "Merge plan for record " + sourceFileRecordId + ": " + plan);
+            PdfOptimizer optimizer = new PdfOptimizer("true".equals(getPropertyString("linearize")),
+                    "true".equals(getPropertyString("compressObjects")));
+            boolean isolated = "true".equals(getPropertyString("isolatedMerge"));
+            MergedPdf mergedPdf;
+            try (MergeScheduler.Ticket ticket = MergeScheduler.getInstance().acquire(WorkflowUtil.getCurrentUsername(), 1, plan.getTotalBytes())) {
+                if ("true".equals(getPropertyString("cacheResult"))) {
+                    mergedPdf = getStoredPdf(pdfSources, plan, optimizer, isolated);
+                } else {
+                    mergedPdf = optimizer.optimize(mergePdfFiles(pdfSources, plan, isolated));
+                }
+            }
+            long mergeTime = elapsedMillis(stageStart);
+            if (mergedPdf == null || mergedPdf.length() == 0) {
                 LogUtil.error(getClassName(), null, "Merge returned empty or null PDF data.");
+                if (mergedPdf != null) {
+                    mergedPdf.close();
+                }
                 return null;
             }
 
             // 5) Save the merged PDF file into the output form & field
-            saveMergedPdf(mergedPdfBytes, outputFormDefId, outputFileFieldId, outputFileRecordId, appDef, appService);
+            stageStart = System.nanoTime();
+            try {
+                saveMergedPdf(mergedPdf, outputFormDefId, outputFileFieldId, outputFileRecordId, appDef, appService);
+            } finally {
+                mergedPdf.close();
+            }
+            long saveTime = elapsedMillis(stageStart);
+
+            LogUtil.info(getClassName(), "Merged " + pdfSources.size() + " of " + allPdfPaths.size() + " files for record " + sourceFileRecordId
+                    + " (collect " + collectTime + " ms, resolve " + resolveTime + " ms, merge " + mergeTime + " ms, save " + saveTime + " ms)");
 
         } catch (Exception ex) {
             LogUtil.error(getClassName(), ex, "Error merging and saving PDFs in MergePDFTool.");
@@ -121,9 +165,14 @@ public class MergePDFTool extends DefaultApplicationPlugin {
         return null;
     }
 
-    private List<String> collectAllPdfPaths(Form sourceForm, FormData formData, List<String> fieldIdList) {
+    /**
+     * Collect the paths of all fields in order, adding the page selection of
+     * each path's field to allPages
+     */
+    private List<String> collectAllPdfPaths(Form sourceForm, FormData formData, List<String> fieldIdList, List<PageSelection> fieldPageList, List<PageSelection> allPages) {
         List<String> allPaths = new ArrayList<>();
-        for (String fieldId : fieldIdList) {
+        for (int i = 0; i < fieldIdList.size(); i++) {
+            String fieldId = fieldIdList.get(i);
             Element el = FormUtil.findElement(fieldId, sourceForm, formData);
             if (el != null) {
                 String rawValue = FormUtil.getElementPropertyValue(el, formData);
@@ -132,6 +181,7 @@ public class MergePDFTool extends DefaultApplicationPlugin {
                     for (String path : splitted) {
                         if (path != null && !path.trim().isEmpty()) {
                             allPaths.add(path.trim());
+                            allPages.add(fieldPageList.get(i));
                         }
                     }
                 } else {
@@ -153,43 +203,141 @@ public class MergePDFTool extends DefaultApplicationPlugin {
         }
     }
 
-    private List<File> convertPathsToFiles(List<String> paths, Form sourceForm, String recordId) {
-        List<File> files = new ArrayList<>();
+    /**
+     * Stop the shared resolver threads, called when the bundle stops
+     */
+    public static synchronized void shutdown() {
+        if (resolveExecutor != null) {
+            resolveExecutor.shutdownNow();
+            resolveExecutor = null;
+        }
+    }
 
-        for (String path : paths) {
-            try {
-                File file = FileUtil.getFile(path, sourceForm, recordId);
-                if (file != null && file.exists()) {
-                    if (isPdfFile(file)) { // Validate file type
-                        files.add(file);
-                    } else {
-                        LogUtil.warn(getClassName(), "Invalid file type (not a PDF): " + file.getAbsolutePath());
+    private static synchronized ExecutorService getResolveExecutor() {
+        if (resolveExecutor == null) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(MAX_RESOLVE_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "merge-pdf-resolver-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            resolveExecutor = executor;
+        }
+        return resolveExecutor;
+    }
+
+    /**
+     * Resolve the paths on the calling thread, where FileUtil has the current
+     * app and host profile, then validate the files concurrently on the shared
+     * resolver threads, since each check is a metadata round-trip on network
+     * storage. The returned files keep the order of the paths.
+     */
+    private List<MergeSource> convertPathsToFiles(List<String> paths, List<PageSelection> pages, Form sourceForm, String recordId) throws InterruptedException {
+        List<MergeSource> files = new ArrayList<>();
+        if (paths.size() == 1) {
+            File file = getSourceFile(paths.get(0), sourceForm, recordId);
+            if (file != null && validatePdfFile(file, paths.get(0))) {
+                files.add(new MergeSource(file, pages.get(0)));
+            }
+            return files;
+        }
+
+        List<File> resolved = new ArrayList<>();
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (final String path : paths) {
+            final File file = getSourceFile(path, sourceForm, recordId);
+            resolved.add(file);
+            if (file == null) {
+                futures.add(null);
+                continue;
+            }
+            futures.add(getResolveExecutor().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return validatePdfFile(file, path);
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                if (futures.get(i) == null) {
+                    continue;
+                }
+                try {
+                    if (futures.get(i).get()) {
+                        files.add(new MergeSource(resolved.get(i), pages.get(i)));
                     }
-                } else {
-                    LogUtil.warn(getClassName(), "File not found or invalid: " + path);
+                } catch (ExecutionException ex) {
+                    LogUtil.error(getClassName(), ex.getCause(), "Error retrieving file: " + paths.get(i));
+                }
+            }
+        } finally {
+            for (Future<Boolean> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
                 }
-            } catch (IOException ex) {
-                LogUtil.error(getClassName(), ex, "Error retrieving file: " + path);
             }
         }
         return files;
     }
 
-    private byte[] mergePdfFiles(List<File> pdfFiles) {
-        PDFMergerUtility merger = new PDFMergerUtility();
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            for (File f : pdfFiles) {
-                merger.addSource(f);
+    private File getSourceFile(String path, Form sourceForm, String recordId) {
+        try {
+            File file = FileUtil.getFile(path, sourceForm, recordId);
+            if (file == null) {
+                LogUtil.warn(getClassName(), "File not found or invalid: " + path);
             }
-            merger.setDestinationStream(baos);
-            merger.mergeDocuments(null);
-            return baos.toByteArray();
+            return file;
+        } catch (IOException ex) {
+            LogUtil.error(getClassName(), ex, "Error retrieving file: " + path);
+        }
+        return null;
+    }
+
+    private boolean validatePdfFile(File file, String path) {
+        if (!file.exists()) {
+            LogUtil.warn(getClassName(), "File not found or invalid: " + path);
+            return false;
+        }
+        if (!isPdfFile(file)) { // Validate file type
+            LogUtil.warn(getClassName(), "Invalid file type (not a PDF): " + file.getAbsolutePath());
+            return false;
+        }
+        return true;
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private MergedPdf mergePdfFiles(List<MergeSource> pdfSources, MergePlan plan, boolean isolated) {
+        try {
+            return PdfMerger.merge(pdfSources, plan, isolated);
         } catch (IOException ex) {
             LogUtil.error(getClassName(), ex, "Error merging PDF files.");
         }
         return null;
     }
 
+    private MergedPdf getStoredPdf(final List<MergeSource> pdfSources, final MergePlan plan, final PdfOptimizer optimizer, final boolean isolated) throws IOException {
+        MergeResultStore store = MergeResultStore.fromConfig(getPropertyString("cacheMaxSize"));
+        String key = MergeResultStore.fingerprint(MergeSource.toFiles(pdfSources), MergeSource.getVariant(pdfSources) + optimizer.getVariant());
+        File result = store.getOrCompute(key, new MergeResultStore.MergeTask() {
+            @Override
+            public void mergeTo(File target) throws IOException {
+                PdfMerger.mergeTo(pdfSources, plan, target, isolated);
+                optimizer.optimize(target);
+            }
+        });
+        return MergeResultStore.open(result);
+    }
+
     private String generateFilename(String recordId, AppDefinition appDef,
             AppService appService, String formDefId) {
         String renameFile = getPropertyString("renameFile");
@@ -305,10 +453,10 @@ public class MergePDFTool extends DefaultApplicationPlugin {
         return sanitized;
     }
 
-    private void saveMergedPdf(byte[] mergedPdfBytes, String formDefIdOutputFile,
+    private void saveMergedPdf(MergedPdf mergedPdf, String formDefIdOutputFile,
             String outputFileFieldId, String recordId,
             AppDefinition appDef, AppService appService) {
-        if (mergedPdfBytes == null || mergedPdfBytes.length == 0) {
+        if (mergedPdf == null || mergedPdf.length() == 0) {
             LogUtil.warn(getClassName(), "Merged PDF is null or empty; nothing to store.");
             return;
         }
@@ -322,7 +470,7 @@ public class MergePDFTool extends DefaultApplicationPlugin {
 
             File outputFile = new File(uploadPath, fileName);
             outputFile.getParentFile().mkdirs();
-            FileUtils.writeByteArrayToFile(outputFile, mergedPdfBytes);
+            mergedPdf.saveTo(outputFile);
 
             FormRow row = new FormRow();
             row.setId(recordId);
@@ -1,13 +1,17 @@
 package org.joget.marketplace;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -15,6 +19,8 @@ import java.util.zip.ZipOutputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.commons.lang.ArrayUtils;
 import org.joget.apps.app.model.AppDefinition;
 import org.joget.apps.app.service.AppPluginUtil;
@@ -32,15 +38,14 @@ import org.joget.apps.form.service.FileUtil;
 import org.joget.apps.form.service.FormUtil;
 import org.joget.commons.util.LogUtil;
 import org.joget.commons.util.StringUtil;
-import org.joget.workflow.model.WorkflowAssignment;
 import org.joget.workflow.util.WorkflowUtil;
-import org.springframework.context.ApplicationContext;
-import org.apache.pdfbox.multipdf.PDFMergerUtility;
 import java.io.File;
 
 public class MergePdfDatalistAction extends DataListActionDefault {
 
     private final static String MESSAGE_PATH = "messages/MergePdfDatalistAction";
+    // peak concurrency seen by each running export
+    private final static Set<AtomicInteger> runningExports = ConcurrentHashMap.newKeySet();
 
     @Override
     public String getName() {
@@ -112,26 +117,43 @@ public class MergePdfDatalistAction extends DataListActionDefault {
     @Override
     public DataListActionResult executeAction(DataList dataList, String[] rowKeys) {
         // only allow POST
-        HttpServletRequest request = WorkflowUtil.getHttpServletRequest();
+        HttpServletRequest request = getHttpServletRequest();
         if (request != null && !"POST".equalsIgnoreCase(request.getMethod())) {
             return null;
         }
 
         // check for submited rows
         if (rowKeys != null && rowKeys.length > 0) {
+            long start = System.nanoTime();
+            AtomicInteger peakExports = startExport();
+            int failed = rowKeys.length;
             try {
                 //get the HTTP Response
-                HttpServletResponse response = WorkflowUtil.getHttpServletResponse();
-
-                if (rowKeys.length == 1) {
-                    //generate a pdf for download
-                    singlePdf(request, response, rowKeys[0]);
-                } else {
-                    //generate a zip of all pdfs
-                    multiplePdfs(request, response, rowKeys);
+                HttpServletResponse response = getHttpServletResponse();
+                MergeExportContext context = createExportContext();
+                Map<String, List<MergeSource>> rowSources = getRowSources(context, rowKeys);
+
+                // wait for a slot sized to the export, so bulk exports do not hold up single downloads
+                long estimatedBytes = MergeScheduler.estimateBytes(rowSources.values());
+                try (MergeScheduler.Ticket ticket = MergeScheduler.getInstance().acquire(getCurrentUsername(), rowKeys.length, estimatedBytes)) {
+                    if (rowKeys.length == 1) {
+                        //generate a pdf for download
+                        failed = singlePdf(request, response, context, rowKeys[0], rowSources.get(rowKeys[0])) ? 0 : 1;
+                    } else {
+                        //generate a zip of all pdfs
+                        failed = multiplePdfs(request, response, context, rowKeys, rowSources);
+                    }
                 }
             } catch (IOException | ServletException e) {
                 LogUtil.error(getClassName(), e, "Fail to generate PDF for " + ArrayUtils.toString(rowKeys));
+            } finally {
+                runningExports.remove(peakExports);
+                String stats = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms (peak " + peakExports.get() + " concurrent export(s))";
+                if (failed == 0) {
+                    LogUtil.info(getClassName(), "Exported " + rowKeys.length + " row(s) in " + stats);
+                } else {
+                    LogUtil.warn(getClassName(), "Failed to export " + failed + " of " + rowKeys.length + " row(s) after " + stats);
+                }
             }
         }
 
@@ -139,33 +161,95 @@ public class MergePdfDatalistAction extends DataListActionDefault {
         return null;
     }
 
-    public String getFileNameFromConfig(String id, String configFileName) {
-        AppService appService = (AppService) FormUtil.getApplicationContext().getBean("appService");
+    /**
+     * Register a running export and raise the peak concurrency of every
+     * running export, including this one
+     *
+     * @return the peak concurrency seen by the new export
+     */
+    protected static AtomicInteger startExport() {
+        AtomicInteger peak = new AtomicInteger();
+        runningExports.add(peak);
+        int running = runningExports.size();
+        for (AtomicInteger other : runningExports) {
+            other.accumulateAndGet(running, Math::max);
+        }
+        return peak;
+    }
+
+    protected HttpServletRequest getHttpServletRequest() {
+        return WorkflowUtil.getHttpServletRequest();
+    }
+
+    protected HttpServletResponse getHttpServletResponse() {
+        return WorkflowUtil.getHttpServletResponse();
+    }
+
+    protected String getCurrentUsername() {
+        return WorkflowUtil.getCurrentUsername();
+    }
+
+    /**
+     * Read the configuration used by every row of an export
+     *
+     * @return
+     */
+    protected MergeExportContext createExportContext() {
+        AppService appService = (AppService) AppUtil.getApplicationContext().getBean("appService");
         AppDefinition appDef = AppUtil.getCurrentAppDefinition();
-        String appVersion = String.valueOf(appDef.getVersion());
-        String appId = appDef.getAppId();
-        String formDefId = getPropertyString("formDefId");
-        FormRowSet frs = appService.loadFormData(appId, appVersion, formDefId, id);
+
+        String zipFileName = getPropertyString("zipFileName");
+        if (zipFileName.isEmpty()) {
+            zipFileName = getLinkLabel();
+        }
+
+        MergeResultStore resultStore = null;
+        if ("true".equals(getPropertyString("cacheResult"))) {
+            resultStore = MergeResultStore.fromConfig(getPropertyString("cacheMaxSize"));
+        }
+
+        return new MergeExportContext(appDef, appService, getPropertyString("formDefId"), getPropertyString("fieldId"),
+                PageSelection.fromConfig(getPropertyString("pageRange")),
+                getPropertyString("fileName"), zipFileName, resultStore,
+                MergePlan.parseMegabytes(getPropertyString("memoryThreshold"), MergePlan.DEFAULT_MEMORY_THRESHOLD),
+                MergePlan.parseMegabytes(getPropertyString("spoolThreshold"), MergePlan.DEFAULT_SPOOL_THRESHOLD),
+                new PdfOptimizer("true".equals(getPropertyString("linearize")),
+                        "true".equals(getPropertyString("compressObjects"))),
+                "true".equals(getPropertyString("isolatedMerge")));
+    }
+
+    public String getFileNameFromConfig(MergeExportContext context, String id) {
+        AppDefinition appDef = context.getAppDef();
+        FormRowSet frs = context.getAppService().loadFormData(appDef.getAppId(), String.valueOf(appDef.getVersion()), context.getFormDefId(), id);
         FormRow formRow = frs.get(0);
-        String fileName = (String) formRow.get(configFileName);
+        String fileName = (String) formRow.get(context.getFileNameColumn());
         return fileName;
     }
 
+    protected String getPdfFileName(MergeExportContext context, String id) {
+        if (!context.getFileNameColumn().isEmpty()) {
+            return getFileNameFromConfig(context, id) + ".pdf";
+        } else {
+            return id + ".pdf";
+        }
+    }
+
     /**
      * Handles for single pdf file
      *
      * @param request
      * @param response
+     * @param context
      * @param rowKey
+     * @param sources
+     * @return whether the pdf was merged, as the response is empty otherwise
      * @throws IOException
      * @throws javax.servlet.ServletException
      */
-    protected void singlePdf(HttpServletRequest request, HttpServletResponse response, String rowKey) throws IOException, ServletException {
-        byte[] pdf = getPdf(rowKey);
-        if (!getPropertyString("fileName").isEmpty()) {
-            writeResponse(request, response, pdf, getFileNameFromConfig(rowKey, getPropertyString("fileName")) + ".pdf", "application/pdf");
-        } else {
-            writeResponse(request, response, pdf, rowKey + ".pdf", "application/pdf");
+    protected boolean singlePdf(HttpServletRequest request, HttpServletResponse response, MergeExportContext context, String rowKey, List<MergeSource> sources) throws IOException, ServletException {
+        try (MergedPdf pdf = getPdf(context, rowKey, sources)) {
+            writeResponse(request, response, pdf, getPdfFileName(context, rowKey), "application/pdf");
+            return pdf != null;
         }
     }
 
@@ -174,26 +258,47 @@ public class MergePdfDatalistAction extends DataListActionDefault {
      *
      * @param request
      * @param response
+     * @param context
      * @param rowKeys
+     * @param rowSources
+     * @return the number of rows that could not be merged and have an empty entry
      * @throws java.io.IOException
      * @throws javax.servlet.ServletException
      */
-    protected void multiplePdfs(HttpServletRequest request, HttpServletResponse response, String[] rowKeys) throws IOException, ServletException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ZipOutputStream zip = new ZipOutputStream(baos);
+    protected int multiplePdfs(HttpServletRequest request, HttpServletResponse response, MergeExportContext context, String[] rowKeys, Map<String, List<MergeSource>> rowSources) throws IOException, ServletException {
+        // zip is kept in memory up to the memory threshold, then spooled to a temp file
+        int threshold = (int) Math.min(Integer.MAX_VALUE, context.getMemoryThreshold());
+        DeferredFileOutputStream zipOut = DeferredFileOutputStream.builder()
+                .setThreshold(threshold)
+                .setPrefix("merged-")
+                .setSuffix(".zip")
+                .get();
+        ZipOutputStream zip = new ZipOutputStream(zipOut);
         Map<String, Integer> fileNameCounts = new HashMap<>();
+        MergedPdf zipFile = null;
+        int failed = 0;
+
+        // rows sharing the same source set are merged once; results are kept until their last use
+        Map<String, String> rowFingerprints = new HashMap<>();
+        Map<String, Integer> remainingUses = new HashMap<>();
+        Map<String, MergedPdf> sharedPdfs = new HashMap<>();
+        for (String id : rowKeys) {
+            List<MergeSource> sources = rowSources.get(id);
+            if (sources != null) {
+                String fingerprint = getFingerprint(context, sources);
+                rowFingerprints.put(id, fingerprint);
+                Integer uses = remainingUses.get(fingerprint);
+                remainingUses.put(fingerprint, (uses == null) ? 1 : uses + 1);
+            }
+        }
+        LogUtil.info(getClassName(), "Exporting " + rowKeys.length + " row(s) with " + remainingUses.size() + " unique source set(s), dedup ratio "
+                + String.format("%.2f", (double) rowKeys.length / Math.max(1, remainingUses.size())));
 
         try {
             //create pdf and put in zip
             for (String id : rowKeys) {
-                byte[] pdf = getPdf(id);
 
-                String fileName;
-                if (!getPropertyString("fileName").isEmpty()) {
-                    fileName = getFileNameFromConfig(id, getPropertyString("fileName")) + ".pdf";
-                } else {
-                    fileName = id + ".pdf";
-                }
+                String fileName = getPdfFileName(context, id);
 
                 // Check if the filename already exists in the zip
                 if (fileNameCounts.containsKey(fileName)) {
@@ -210,100 +315,141 @@ public class MergePdfDatalistAction extends DataListActionDefault {
                 }
 
                 zip.putNextEntry(new ZipEntry(fileName));
-                zip.write(pdf);
+                String fingerprint = rowFingerprints.get(id);
+                MergedPdf pdf = (fingerprint != null) ? sharedPdfs.remove(fingerprint) : null;
+                if (pdf == null) {
+                    pdf = getPdf(context, id, rowSources.get(id));
+                }
+                try {
+                    if (pdf != null) {
+                        pdf.writeTo(zip);
+                    } else {
+                        failed++;
+                    }
+                } finally {
+                    if (fingerprint != null) {
+                        int uses = remainingUses.get(fingerprint) - 1;
+                        remainingUses.put(fingerprint, uses);
+                        if (uses > 0 && pdf != null) {
+                            sharedPdfs.put(fingerprint, pdf);
+                            pdf = null;
+                        }
+                    }
+                    if (pdf != null) {
+                        pdf.close();
+                    }
+                }
                 zip.closeEntry();
+
+                // keep stored results waiting for a later row from being evicted
+                for (MergedPdf shared : sharedPdfs.values()) {
+                    shared.touch();
+                }
             }
 
-            zip.finish();
-            if (!getPropertyString("zipFileName").isEmpty()) {
-                writeResponse(request, response, baos.toByteArray(), getPropertyString("zipFileName") + ".zip", "application/zip");
+            // closing flushes the spooled zip to disk before it is read
+            zip.close();
+            if (zipOut.isInMemory()) {
+                zipFile = MergedPdf.ofBytes(zipOut.getData());
             } else {
-                writeResponse(request, response, baos.toByteArray(), getLinkLabel() + ".zip", "application/zip");
+                zipFile = MergedPdf.ofFile(zipOut.getFile(), true);
             }
+            writeResponse(request, response, zipFile, context.getZipFileName() + ".zip", "application/zip");
+            return failed;
         } finally {
-            baos.close();
-            zip.flush();
+            zip.close();
+            for (MergedPdf pdf : sharedPdfs.values()) {
+                pdf.close();
+            }
+            if (zipFile != null) {
+                zipFile.close();
+            } else if (zipOut.getFile() != null) {
+                FileUtils.deleteQuietly(zipOut.getFile());
+            }
         }
     }
 
     /**
-     * Generate PDF using FormPdfUtil
+     * Resolve the source PDFs of every row, keyed by row in the given order
      *
-     * @param id
+     * @param context
+     * @param rowKeys
      * @return
      */
-    protected byte[] getPdf(String id) {
-        AppDefinition appDef = AppUtil.getCurrentAppDefinition();
-        String formDefId = getPropertyString("formDefId");
-        String fieldId = getPropertyString("fieldId");
-
-        Boolean hideEmptyValueField = null;
-        if (getPropertyString("hideEmptyValueField").equals("true")) {
-            hideEmptyValueField = true;
-        }
-
-        Boolean showNotSelectedOptions = false;
-        if (getPropertyString("showNotSelectedOptions").equals("true")) {
-            showNotSelectedOptions = true;
-        }
-        Boolean repeatHeader = null;
-        if ("true".equals(getPropertyString("repeatHeader"))) {
-            repeatHeader = true;
-        }
-        Boolean repeatFooter = null;
-        if ("true".equals(getPropertyString("repeatFooter"))) {
-            repeatFooter = true;
-        }
-        String css = null;
-        if (!getPropertyString("formatting").isEmpty()) {
-            css = getPropertyString("formatting");
-        }
-        String header = null;
-        if (!getPropertyString("headerHtml").isEmpty()) {
-            header = getPropertyString("headerHtml");
-            header = AppUtil.processHashVariable(header, null, null, null);
-        }
-
-        String footer = null;
-        if (!getPropertyString("footerHtml").isEmpty()) {
-            footer = getPropertyString("footerHtml");
-            footer = AppUtil.processHashVariable(footer, null, null, null);
+    protected Map<String, List<MergeSource>> getRowSources(MergeExportContext context, String[] rowKeys) {
+        Map<String, List<MergeSource>> rowSources = new LinkedHashMap<>();
+        for (String id : rowKeys) {
+            if (!rowSources.containsKey(id)) {
+                rowSources.put(id, getSources(context, id));
+            }
         }
-
-        return createPdf(fieldId, formDefId, id, appDef, null, hideEmptyValueField, header, footer, css, showNotSelectedOptions, repeatHeader, repeatFooter);
+        return rowSources;
     }
 
-    public byte[] createPdf(String fieldId, String formId, String primaryKey, AppDefinition appDef, WorkflowAssignment assignment, Boolean hideEmpty, String header, String footer, String css, Boolean showAllSelectOptions, Boolean repeatHeader, Boolean repeatFooter) {
+    /**
+     * Resolve the uploaded PDFs of a record
+     *
+     * @param context
+     * @param primaryKey
+     * @return the sources, or null when they cannot be resolved
+     */
+    protected List<MergeSource> getSources(MergeExportContext context, String primaryKey) {
         try {
-            ApplicationContext ac = AppUtil.getApplicationContext();
-            AppService appService = (AppService) ac.getBean("appService");
+            AppDefinition appDef = context.getAppDef();
             FormData formData = new FormData();
             formData.setPrimaryKeyValue(primaryKey);
-            Form loadForm = appService.viewDataForm(appDef.getId(), appDef.getVersion().toString(), formId, null, null, null, formData, null, null);
-            Element el = FormUtil.findElement(fieldId, loadForm, formData);
-            File srcFile = FileUtil.getFile(FormUtil.getElementPropertyValue(el, formData), loadForm, primaryKey);
+            Form loadForm = context.getAppService().viewDataForm(appDef.getId(), appDef.getVersion().toString(), context.getFormDefId(), null, null, null, formData, null, null);
+            Element el = FormUtil.findElement(context.getFieldId(), loadForm, formData);
+            File srcFile = getUploadedFile(FormUtil.getElementPropertyValue(el, formData), loadForm, primaryKey);
             String filePaths = srcFile.getPath();
 
             List<String> filePathList = getFilesList(filePaths);
             List<File> fileList = convertPathsToFiles(filePathList);
+            return MergeSource.fromFiles(fileList, context.getPageSelection());
+        } catch (Exception ex) {
+            LogUtil.error(getClassName(), ex, ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Locate an uploaded file of a record in the form upload directory
+     *
+     * @param fileName
+     * @param form
+     * @param primaryKey
+     * @return
+     * @throws IOException
+     */
+    protected File getUploadedFile(String fileName, Form form, String primaryKey) throws IOException {
+        return FileUtil.getFile(fileName, form, primaryKey);
+    }
 
-            return mergePdf(fileList, filePaths);
+    /**
+     * Merge the uploaded PDFs of a record
+     *
+     * @param context
+     * @param primaryKey
+     * @param sources
+     * @return
+     */
+    protected MergedPdf getPdf(MergeExportContext context, String primaryKey, List<MergeSource> sources) {
+        if (sources == null) {
+            return null;
+        }
+        try {
+            MergePlan plan = MergePlan.create(MergeSource.toFiles(sources), context.getMemoryThreshold(), context.getSpoolThreshold());
+            LogUtil.info(getClassName(), "Merge plan for " + primaryKey + ": " + plan);
+
+            if (context.getResultStore() != null) {
+                return getStoredPdf(context, sources, plan);
+            }
+            return context.getOptimizer().optimize(mergePdf(sources, plan, context.isIsolated()));
 
         } catch (Exception ex) {
             LogUtil.error(getClassName(), ex, ex.getMessage());
         }
         return null;
-
-        // try {
-        //     String html = getSelectedFormHtml(formId, primaryKey, appDef, assignment, hideEmpty);
-        //     header = AppUtil.processHashVariable(header, assignment, null, null);
-        //     footer = AppUtil.processHashVariable(footer, assignment, null, null);
-        //     html = cleanFormHtml(html, showAllSelectOptions);
-        //     return FormPdfUtil.createPdf(html, header, footer, css, showAllSelectOptions, repeatHeader, repeatFooter, true);
-        // } catch (Exception e) {
-        //     LogUtil.error(FormPdfUtil.class.getName(), e, "");
-        // }
-        // return null;
     }
 
     public List<String> getFilesList(String filePaths) {
@@ -335,44 +481,49 @@ public class MergePdfDatalistAction extends DataListActionDefault {
         return fileList;
     }
 
-    public byte[] mergePdf(List<File> fileList, String filePaths) {
-
+    public MergedPdf mergePdf(List<MergeSource> sources, MergePlan plan, boolean isolated) {
         try {
-            // Path to the output merged PDF file
-            String outputFilePath = "path/to/output/merged-file.pdf";
-
-            // Create a PDFMergerUtility instance
-            PDFMergerUtility pdfMerger = new PDFMergerUtility();
-
-            // Set the destination file name
-            pdfMerger.setDestinationFileName(filePaths + "merged.pdf");
-
-            // Add all input PDF files to the merger utility
-            for (File file : fileList) {
-                pdfMerger.addSource(file);
-            }
-
-            // Create a ByteArrayOutputStream to hold the merged PDF
-            try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-                // Set the destination to the ByteArrayOutputStream
-                pdfMerger.setDestinationStream(outputStream);
-
-                // Merge the documents
-                pdfMerger.mergeDocuments(null);
-
-                // Return the merged PDF as a byte array
-                return outputStream.toByteArray();
-            }
-
-            // Merge the documents
-            // pdfMerger.mergeDocuments(null);
-            // LogUtil.info(getClassName(), "PDF files merged successfully into " + outputFilePath);
+            return PdfMerger.merge(sources, plan, isolated);
         } catch (IOException e) {
             LogUtil.error(getClassName(), e, e.getMessage());
         }
         return null;
     }
 
+    /**
+     * Get the merged PDF from the shared result store, merging it only when no
+     * node in the cluster has done so yet
+     *
+     * @param context
+     * @param sources
+     * @param plan
+     * @return
+     * @throws IOException
+     */
+    protected MergedPdf getStoredPdf(final MergeExportContext context, final List<MergeSource> sources, final MergePlan plan) throws IOException {
+        final PdfOptimizer optimizer = context.getOptimizer();
+        File result = context.getResultStore().getOrCompute(getFingerprint(context, sources), new MergeResultStore.MergeTask() {
+            @Override
+            public void mergeTo(File target) throws IOException {
+                PdfMerger.mergeTo(sources, plan, target, context.isIsolated());
+                optimizer.optimize(target);
+            }
+        });
+        return MergeResultStore.open(result);
+    }
+
+    /**
+     * Fingerprint of the sources (path, size and last modified) and the output
+     * options, identifying the merged result
+     *
+     * @param context
+     * @param sources
+     * @return
+     */
+    protected String getFingerprint(MergeExportContext context, List<MergeSource> sources) {
+        return MergeResultStore.fingerprint(MergeSource.toFiles(sources), MergeSource.getVariant(sources) + context.getOptimizer().getVariant());
+    }
+
     /**
      * Write to response for download
      *
@@ -384,15 +535,30 @@ public class MergePdfDatalistAction extends DataListActionDefault {
      * @throws IOException
      */
     protected void writeResponse(HttpServletRequest request, HttpServletResponse response, byte[] bytes, String filename, String contentType) throws IOException, ServletException {
+        writeResponse(request, response, MergedPdf.ofBytes(bytes), filename, contentType);
+    }
+
+    /**
+     * Write to response for download, streaming from disk when the content is
+     * spooled to a file
+     *
+     * @param request
+     * @param response
+     * @param content
+     * @param filename
+     * @param contentType
+     * @throws IOException
+     */
+    protected void writeResponse(HttpServletRequest request, HttpServletResponse response, MergedPdf content, String filename, String contentType) throws IOException, ServletException {
         OutputStream out = response.getOutputStream();
         try {
             String name = URLEncoder.encode(filename, "UTF8").replaceAll("\\+", "%20");
             response.setHeader("Content-Disposition", "attachment; filename=" + name + "; filename*=UTF-8''" + name);
             response.setContentType(contentType + "; charset=UTF-8");
 
-            if (bytes.length > 0) {
-                response.setContentLength(bytes.length);
-                out.write(bytes);
+            if (content != null && content.length() > 0) {
+                response.setHeader("Content-Length", String.valueOf(content.length()));
+                content.writeTo(out);
             }
         } finally {
             out.flush();
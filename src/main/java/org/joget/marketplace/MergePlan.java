@@ -0,0 +1,129 @@
+package org.joget.marketplace;
+
+import java.io.File;
+import java.util.List;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Decides how a merge is buffered based on the total size of its sources.
+ *
+ * Small merges stay fully in memory, medium merges let PDFBox move its
+ * buffers to temp files once the memory threshold is reached, and large
+ * merges use temp file buffers and also spool the output to a temp file
+ * instead of a byte array.
+ */
+public class MergePlan {
+
+    public enum Strategy {
+        IN_MEMORY, TEMP_FILE_BUFFER, SPOOLED
+    }
+
+    public static final long DEFAULT_MEMORY_THRESHOLD = 20L * 1024 * 1024;
+    public static final long DEFAULT_SPOOL_THRESHOLD = 200L * 1024 * 1024;
+
+    private final Strategy strategy;
+    private final int fileCount;
+    private final long totalBytes;
+    private final long memoryThreshold;
+    private final long spoolThreshold;
+
+    protected MergePlan(Strategy strategy, int fileCount, long totalBytes, long memoryThreshold, long spoolThreshold) {
+        this.strategy = strategy;
+        this.fileCount = fileCount;
+        this.totalBytes = totalBytes;
+        this.memoryThreshold = memoryThreshold;
+        this.spoolThreshold = spoolThreshold;
+    }
+
+    /**
+     * Plan a merge of the files using thresholds in bytes
+     *
+     * @param files
+     * @param memoryThreshold
+     * @param spoolThreshold
+     * @return
+     */
+    public static MergePlan create(List<File> files, long memoryThreshold, long spoolThreshold) {
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+
+        Strategy strategy;
+        if (totalBytes >= spoolThreshold) {
+            strategy = Strategy.SPOOLED;
+        } else if (totalBytes >= memoryThreshold) {
+            strategy = Strategy.TEMP_FILE_BUFFER;
+        } else {
+            strategy = Strategy.IN_MEMORY;
+        }
+        return new MergePlan(strategy, files.size(), totalBytes, memoryThreshold, spoolThreshold);
+    }
+
+    /**
+     * Plan a merge of the files using the configured thresholds in MB, falling
+     * back to the defaults when empty or invalid
+     *
+     * @param files
+     * @param memoryThresholdMb
+     * @param spoolThresholdMb
+     * @return
+     */
+    public static MergePlan create(List<File> files, String memoryThresholdMb, String spoolThresholdMb) {
+        return create(files, parseMegabytes(memoryThresholdMb, DEFAULT_MEMORY_THRESHOLD), parseMegabytes(spoolThresholdMb, DEFAULT_SPOOL_THRESHOLD));
+    }
+
+    public static long parseMegabytes(String value, long defaultBytes) {
+        if (value != null && !value.trim().isEmpty()) {
+            try {
+                return Long.parseLong(value.trim()) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                LogUtil.warn(MergePlan.class.getName(), "Invalid size \"" + value + "\", using default.");
+            }
+        }
+        return defaultBytes;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    public boolean isSpooled() {
+        return strategy == Strategy.SPOOLED;
+    }
+
+    /**
+     * PDFBox buffer setting matching the strategy
+     *
+     * @return
+     */
+    public MemoryUsageSetting getMemoryUsageSetting() {
+        switch (strategy) {
+            case SPOOLED:
+                return MemoryUsageSetting.setupTempFileOnly();
+            case TEMP_FILE_BUFFER:
+                return MemoryUsageSetting.setupMixed(memoryThreshold);
+            default:
+                return MemoryUsageSetting.setupMainMemoryOnly();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return strategy + " for " + fileCount + " file(s), " + totalBytes + " bytes (memory threshold "
+                + memoryThreshold + ", spool threshold " + spoolThreshold + ")";
+    }
+}
@@ -0,0 +1,382 @@
+package org.joget.marketplace;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.joget.apps.form.service.FileUtil;
+import org.joget.commons.util.LogUtil;
+
+/**
+ * On-disk store of merged PDFs kept under the shared upload directory, so that
+ * every node of a cluster can reuse a merge computed by any other node.
+ *
+ * Only one node computes a given merge at a time: the node that manages to
+ * create the "<key>.lock" file does the work, writes to a temporary file and
+ * atomically renames it to "<key>.pdf". While working, the holder touches
+ * the lock periodically, and the other nodes wait for the result as long as
+ * the lock stays fresh, up to the maximum wait. A lock that has not been
+ * touched for the stale age is treated as left over by a dead node and is
+ * taken over by renaming it away atomically, so that only one waiter can
+ * claim it. The holder stops touching the lock once its merge has run past
+ * the maximum merge time, so a hung merge cannot hold a key forever.
+ */
+public class MergeResultStore {
+
+    public static final long DEFAULT_MAX_SIZE = 512L * 1024 * 1024;
+    public static final long DEFAULT_STALE_LOCK_AGE = 2L * 60 * 1000;
+    public static final long DEFAULT_MAX_MERGE_TIME = 10L * 60 * 1000;
+    public static final long DEFAULT_MAX_WAIT = 15L * 60 * 1000;
+
+    private static final String STORE_TABLE = "merge_pdf_store";
+    private static final String STORE_RECORD = "results";
+    private static final String RESULT_EXT = ".pdf";
+    private static final String LOCK_EXT = ".lock";
+    private static final String TEMP_EXT = ".tmp";
+    private static final long POLL_INTERVAL = 250L;
+    private static final long MIN_EVICT_AGE = 5L * 60 * 1000;
+    private static final long TOUCH_INTERVAL = 30L * 1000;
+
+    private static ScheduledExecutorService heartbeat;
+
+    private final File directory;
+    private final long maxSize;
+    private final long staleLockAge;
+    private final long maxMergeTime;
+    private final long maxWait;
+
+    /**
+     * Callback that writes a freshly merged PDF to the given file
+     */
+    public interface MergeTask {
+        void mergeTo(File target) throws IOException;
+    }
+
+    public MergeResultStore(long maxSize) {
+        this(maxSize, DEFAULT_STALE_LOCK_AGE, DEFAULT_MAX_MERGE_TIME, DEFAULT_MAX_WAIT);
+    }
+
+    public MergeResultStore(long maxSize, long staleLockAge, long maxMergeTime, long maxWait) {
+        this.directory = new File(FileUtil.getUploadPath(STORE_TABLE, STORE_RECORD));
+        this.maxSize = maxSize;
+        this.staleLockAge = staleLockAge;
+        this.maxMergeTime = maxMergeTime;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Build a store from the configured maximum size in MB, falling back to the
+     * default size when the value is empty or invalid.
+     *
+     * @param maxSizeMb
+     * @return
+     */
+    public static MergeResultStore fromConfig(String maxSizeMb) {
+        long maxSize = DEFAULT_MAX_SIZE;
+        if (maxSizeMb != null && !maxSizeMb.trim().isEmpty()) {
+            try {
+                maxSize = Long.parseLong(maxSizeMb.trim()) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                LogUtil.warn(MergeResultStore.class.getName(), "Invalid cache size \"" + maxSizeMb + "\", using default.");
+            }
+        }
+        return new MergeResultStore(maxSize);
+    }
+
+    /**
+     * Fingerprint an ordered list of source files using their path, size and
+     * last modified time. Any extra option affecting the output goes into
+     * variant.
+     *
+     * @param files
+     * @param variant
+     * @return
+     */
+    public static String fingerprint(List<File> files, String variant) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (File file : files) {
+                String entry = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "\n";
+                digest.update(entry.getBytes(StandardCharsets.UTF_8));
+            }
+            if (variant != null) {
+                digest.update(variant.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stop the lock heartbeat thread, called when the bundle stops
+     */
+    public static synchronized void shutdown() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+            heartbeat = null;
+        }
+    }
+
+    protected static synchronized ScheduledExecutorService getHeartbeat() {
+        if (heartbeat == null) {
+            heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "merge-pdf-store-heartbeat");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return heartbeat;
+    }
+
+    /**
+     * Wrap a result returned by the store. Reading it keeps it from being
+     * evicted by another node.
+     *
+     * @param result
+     * @return
+     */
+    public static MergedPdf open(File result) {
+        return MergedPdf.ofStoredFile(result, TOUCH_INTERVAL);
+    }
+
+    /**
+     * Return the stored result for the key, computing it with the task when no
+     * node has done so yet. Waits for as long as another node holds a fresh
+     * lock on the key, up to the maximum wait.
+     *
+     * @param key
+     * @param task
+     * @return the result file in the store
+     * @throws IOException also when the result is not ready within the maximum wait
+     */
+    public File getOrCompute(String key, MergeTask task) throws IOException {
+        directory.mkdirs();
+        File result = new File(directory, key + RESULT_EXT);
+        File lock = new File(directory, key + LOCK_EXT);
+        long deadline = System.currentTimeMillis() + maxWait;
+
+        while (true) {
+            if (result.isFile()) {
+                result.setLastModified(System.currentTimeMillis());
+                return result;
+            }
+
+            String owner = tryLock(lock);
+            if (owner != null) {
+                ScheduledFuture<?> touch = startHeartbeat(lock);
+                try {
+                    if (!result.isFile()) {
+                        compute(key, result, task);
+                        evict();
+                    }
+                    return result;
+                } finally {
+                    touch.cancel(false);
+                    unlock(lock, owner);
+                }
+            }
+
+            if (lock.exists() && System.currentTimeMillis() - lock.lastModified() > staleLockAge) {
+                takeOverStaleLock(lock);
+                continue;
+            }
+
+            if (System.currentTimeMillis() > deadline) {
+                // fail rather than hold the request thread and its scheduler permits any longer
+                throw new IOException("Timed out after " + maxWait + " ms waiting for merge " + key + " on another node");
+            }
+
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for merge " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Create the lock file
+     *
+     * @param lock
+     * @return the owner written to the lock, or null if the lock is held
+     * @throws IOException
+     */
+    protected String tryLock(File lock) throws IOException {
+        try {
+            Files.createFile(lock.toPath());
+        } catch (FileAlreadyExistsException e) {
+            return null;
+        }
+        String owner = ManagementFactory.getRuntimeMXBean().getName() + " " + Thread.currentThread().getName() + " " + UUID.randomUUID().toString();
+        Files.write(lock.toPath(), owner.getBytes(StandardCharsets.UTF_8));
+        return owner;
+    }
+
+    /**
+     * Delete the lock, unless it was taken over and now belongs to another owner
+     *
+     * @param lock
+     * @param owner
+     * @throws IOException
+     */
+    protected void unlock(File lock, String owner) throws IOException {
+        try {
+            String current = new String(Files.readAllBytes(lock.toPath()), StandardCharsets.UTF_8);
+            if (owner.equals(current)) {
+                Files.deleteIfExists(lock.toPath());
+            } else {
+                LogUtil.warn(getClass().getName(), "Merge lock " + lock.getName() + " was taken over by " + current);
+            }
+        } catch (NoSuchFileException e) {
+            // already taken over and released
+        }
+    }
+
+    /**
+     * Touch the lock every quarter of the stale age so that waiting nodes can
+     * tell a slow merge from a dead node. Touching stops after the maximum
+     * merge time, letting the lock go stale if the merge hangs.
+     *
+     * @param lock
+     * @return
+     */
+    protected ScheduledFuture<?> startHeartbeat(final File lock) {
+        final long started = System.currentTimeMillis();
+        final AtomicReference<ScheduledFuture<?>> touch = new AtomicReference<>();
+        long interval = Math.max(1000L, staleLockAge / 4);
+        touch.set(getHeartbeat().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                if (now - started > maxMergeTime) {
+                    LogUtil.warn(MergeResultStore.class.getName(), "Merge for " + lock.getName() + " has run over " + maxMergeTime + " ms, no longer refreshing its lock");
+                    touch.get().cancel(false);
+                } else if (!lock.setLastModified(now)) {
+                    LogUtil.warn(MergeResultStore.class.getName(), "Unable to refresh merge lock " + lock.getName());
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS));
+        return touch.get();
+    }
+
+    /**
+     * Claim a stale lock by renaming it to a unique name. Only one of the
+     * nodes racing for it succeeds; the others find it gone and retry. If the
+     * renamed lock turns out to have been refreshed in the meantime, it is
+     * put back.
+     *
+     * @param lock
+     * @throws IOException
+     */
+    protected void takeOverStaleLock(File lock) throws IOException {
+        File claimed = new File(directory, lock.getName() + "." + UUID.randomUUID().toString() + TEMP_EXT);
+        try {
+            move(lock, claimed);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+
+        try {
+            long lockAge = System.currentTimeMillis() - claimed.lastModified();
+            if (lockAge > staleLockAge) {
+                LogUtil.warn(getClass().getName(), "Removed stale merge lock " + lock.getName() + " (" + lockAge + " ms old)");
+            } else {
+                try {
+                    Files.move(claimed.toPath(), lock.toPath());
+                } catch (FileAlreadyExistsException e) {
+                    // a new lock was created meanwhile, which takes precedence
+                }
+            }
+        } finally {
+            Files.deleteIfExists(claimed.toPath());
+        }
+    }
+
+    protected void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    protected void compute(String key, File result, MergeTask task) throws IOException {
+        File temp = new File(directory, key + "." + UUID.randomUUID().toString() + TEMP_EXT);
+        try {
+            task.mergeTo(temp);
+            move(temp, result);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Delete least recently used results until the store fits in the maximum
+     * size. Results used within the last few minutes are kept since another
+     * node may still be reading them, and deleting a file that is open
+     * elsewhere fails those reads on network file systems; readers touch the
+     * result while streaming it. Temporary files older than any merge can run
+     * are removed too.
+     */
+    protected void evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_EXT) && now - file.lastModified() > maxMergeTime + staleLockAge) {
+                file.delete();
+            } else if (file.getName().endsWith(RESULT_EXT)) {
+                total += file.length();
+            }
+        }
+        if (total <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (total <= maxSize) {
+                break;
+            }
+            if (file.getName().endsWith(RESULT_EXT) && now - file.lastModified() > MIN_EVICT_AGE) {
+                long length = file.length();
+                if (file.delete()) {
+                    total -= length;
+                }
+            }
+        }
+        if (total > maxSize) {
+            LogUtil.warn(getClass().getName(), "Merge result store holds " + total + " bytes, over its " + maxSize + " byte limit, as the remaining results are in use");
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.joget.marketplace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.joget.commons.util.LogUtil;
+import org.joget.workflow.model.service.WorkflowUserManager;
+
+/**
+ * Admission control for merge work shared by all plugin instances in the JVM.
+ *
+ * Jobs go to one of two lanes with their own concurrency limit based on the
+ * number of rows and the estimated size of their sources, so bulk exports
+ * never hold the permits used by single record downloads. Each logged in user
+ * is also capped in the number of jobs running at once across both lanes.
+ * Anonymous users and runs without a user all share the same name, so they
+ * are only limited by the lanes.
+ *
+ * Limits can be tuned with the system properties
+ * "mergepdf.scheduler.fastPermits", "mergepdf.scheduler.bulkPermits",
+ * "mergepdf.scheduler.userPermits", "mergepdf.scheduler.fastMaxRows",
+ * "mergepdf.scheduler.fastMaxBytes" and "mergepdf.scheduler.timeout" (ms).
+ */
+public class MergeScheduler {
+
+    public enum Lane {
+        FAST, BULK
+    }
+
+    private static final MergeScheduler INSTANCE = new MergeScheduler(
+            Integer.getInteger("mergepdf.scheduler.fastPermits", 8),
+            Integer.getInteger("mergepdf.scheduler.bulkPermits", 2),
+            Integer.getInteger("mergepdf.scheduler.userPermits", 2),
+            Integer.getInteger("mergepdf.scheduler.fastMaxRows", 20),
+            Long.getLong("mergepdf.scheduler.fastMaxBytes", 50L * 1024 * 1024),
+            Long.getLong("mergepdf.scheduler.timeout", 10L * 60 * 1000));
+
+    private final Semaphore fastLane;
+    private final Semaphore bulkLane;
+    private final int userPermits;
+    private final int fastMaxRows;
+    private final long fastMaxBytes;
+    private final long timeout;
+    private final ConcurrentMap<String, UserLimit> userLimits = new ConcurrentHashMap<>();
+
+    /**
+     * Permits of a user, kept in the map only while the user has jobs waiting
+     * or running
+     */
+    protected static class UserLimit {
+
+        private final String username;
+        private final Semaphore permits;
+        // only changed inside userLimits.compute for the username
+        private int jobs;
+
+        protected UserLimit(String username, int permits) {
+            this.username = username;
+            this.permits = new Semaphore(permits, true);
+        }
+    }
+
+    /**
+     * Permits held by a scheduled job, released on close
+     */
+    public class Ticket implements Closeable {
+
+        private final Lane lane;
+        private final UserLimit userLimit;
+
+        protected Ticket(Lane lane, UserLimit userLimit) {
+            this.lane = lane;
+            this.userLimit = userLimit;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        @Override
+        public void close() {
+            getLaneSemaphore(lane).release();
+            if (userLimit != null) {
+                userLimit.permits.release();
+                releaseUserLimit(userLimit);
+            }
+        }
+    }
+
+    protected MergeScheduler(int fastPermits, int bulkPermits, int userPermits, int fastMaxRows, long fastMaxBytes, long timeout) {
+        this.fastLane = new Semaphore(fastPermits, true);
+        this.bulkLane = new Semaphore(bulkPermits, true);
+        this.userPermits = userPermits;
+        this.fastMaxRows = fastMaxRows;
+        this.fastMaxBytes = fastMaxBytes;
+        this.timeout = timeout;
+    }
+
+    public static MergeScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Total size of the sources of all rows
+     *
+     * @param rowSources
+     * @return
+     */
+    public static long estimateBytes(Collection<List<MergeSource>> rowSources) {
+        long total = 0;
+        for (List<MergeSource> sources : rowSources) {
+            if (sources != null) {
+                for (MergeSource source : sources) {
+                    total += source.getFile().length();
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Single record downloads and small exports use the fast lane, unless
+     * they are larger than the fast lane limit. Exports of more rows than the
+     * fast lane row limit always use the bulk lane, however small their
+     * sources, since each row is a separate merge.
+     *
+     * @param rows
+     * @param estimatedBytes
+     * @return
+     */
+    public Lane selectLane(int rows, long estimatedBytes) {
+        if (rows > fastMaxRows) {
+            return Lane.BULK;
+        }
+        if (estimatedBytes <= fastMaxBytes || (rows == 1 && estimatedBytes <= fastMaxBytes * 4)) {
+            return Lane.FAST;
+        }
+        return Lane.BULK;
+    }
+
+    /**
+     * Wait for a permit in the job's lane and, for a logged in user, a permit
+     * for the user
+     *
+     * @param username
+     * @param rows
+     * @param estimatedBytes
+     * @return
+     * @throws IOException when no permit is available within the timeout
+     */
+    public Ticket acquire(String username, int rows, long estimatedBytes) throws IOException {
+        Lane lane = selectLane(rows, estimatedBytes);
+        UserLimit userLimit = retainUserLimit(username);
+        Semaphore laneLimit = getLaneSemaphore(lane);
+        long start = System.currentTimeMillis();
+        boolean userAcquired = false;
+        boolean scheduled = false;
+
+        try {
+            if (userLimit != null) {
+                if (!userLimit.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Too many merges running for user " + username);
+                }
+                userAcquired = true;
+            }
+            long remaining = Math.max(0, timeout - (System.currentTimeMillis() - start));
+            if (!laneLimit.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for the " + lane + " merge lane");
+            }
+            scheduled = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the " + lane + " merge lane", e);
+        } finally {
+            if (!scheduled && userLimit != null) {
+                if (userAcquired) {
+                    userLimit.permits.release();
+                }
+                releaseUserLimit(userLimit);
+            }
+        }
+
+        long waited = System.currentTimeMillis() - start;
+        if (waited > 0) {
+            LogUtil.info(getClass().getName(), "Scheduled " + rows + " row(s), " + estimatedBytes + " bytes for " + username
+                    + " in " + lane + " lane after " + waited + " ms");
+        }
+        return new Ticket(lane, userLimit);
+    }
+
+    protected Semaphore getLaneSemaphore(Lane lane) {
+        return (lane == Lane.FAST) ? fastLane : bulkLane;
+    }
+
+    /**
+     * Get the limit of the user and count a job against it, creating it for
+     * the user's first job
+     *
+     * @param username
+     * @return the limit of the user, or null for anonymous and system runs
+     */
+    protected UserLimit retainUserLimit(String username) {
+        if (username == null || username.isEmpty() || WorkflowUserManager.ROLE_ANONYMOUS.equals(username)) {
+            return null;
+        }
+        return userLimits.compute(username, (key, limit) -> {
+            if (limit == null) {
+                limit = new UserLimit(key, userPermits);
+            }
+            limit.jobs++;
+            return limit;
+        });
+    }
+
+    /**
+     * Uncount a job of the user, dropping the limit once the user has no job
+     * waiting or running so that the map does not grow with every user
+     *
+     * @param limit
+     */
+    protected void releaseUserLimit(UserLimit limit) {
+        userLimits.computeIfPresent(limit.username, (key, current) -> (--current.jobs > 0) ? current : null);
+    }
+}
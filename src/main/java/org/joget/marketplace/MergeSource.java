@@ -0,0 +1,57 @@
+package org.joget.marketplace;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A source PDF of a merge and the pages taken from it
+ */
+public class MergeSource {
+
+    private final File file;
+    private final PageSelection pages;
+
+    public MergeSource(File file, PageSelection pages) {
+        this.file = file;
+        this.pages = (pages != null) ? pages : PageSelection.ALL;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public PageSelection getPages() {
+        return pages;
+    }
+
+    public static List<MergeSource> fromFiles(List<File> files, PageSelection pages) {
+        List<MergeSource> sources = new ArrayList<>();
+        for (File file : files) {
+            sources.add(new MergeSource(file, pages));
+        }
+        return sources;
+    }
+
+    public static List<File> toFiles(List<MergeSource> sources) {
+        List<File> files = new ArrayList<>();
+        for (MergeSource source : sources) {
+            files.add(source.getFile());
+        }
+        return files;
+    }
+
+    /**
+     * Page selections of the sources, to be part of any result fingerprint
+     *
+     * @param sources
+     * @return
+     */
+    public static String getVariant(List<MergeSource> sources) {
+        StringBuilder sb = new StringBuilder();
+        for (MergeSource source : sources) {
+            sb.append(source.getPages().toString()).append(';');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,104 @@
+package org.joget.marketplace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Entry point of a child JVM started by {@link MergeWorkerPool}. Reads one
+ * merge request per line from stdin and answers each with one line on stdout,
+ * either "OK" or "ERROR" followed by a tab and the message.
+ *
+ * A request is tab separated: "MERGE", the plan strategy, the memory
+ * threshold, the output path, then the path and page selection of each
+ * source.
+ */
+public class MergeWorker {
+
+    public static final String MERGE = "MERGE";
+    public static final String OK = "OK";
+    public static final String ERROR = "ERROR";
+    public static final String SEPARATOR = "\t";
+
+    private MergeWorker() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+        // keep anything printed by libraries off the protocol channel
+        System.setOut(System.err);
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                merge(line);
+                out.println(OK);
+            } catch (OutOfMemoryError e) {
+                out.println(ERROR + SEPARATOR + "Worker ran out of memory");
+                System.exit(1);
+            } catch (Throwable e) {
+                String message = String.valueOf(e.getMessage()).replaceAll("[\\t\\r\\n]+", " ");
+                out.println(ERROR + SEPARATOR + e.getClass().getName() + ": " + message);
+            }
+        }
+    }
+
+    protected static void merge(String request) throws Exception {
+        String[] fields = request.split(SEPARATOR, -1);
+        if (fields.length < 6 || !MERGE.equals(fields[0]) || (fields.length - 4) % 2 != 0) {
+            throw new IllegalArgumentException("Invalid request");
+        }
+
+        MergePlan.Strategy strategy = MergePlan.Strategy.valueOf(fields[1]);
+        long memoryThreshold = Long.parseLong(fields[2]);
+        File output = new File(fields[3]);
+
+        List<MergeSource> sources = new ArrayList<>();
+        long totalBytes = 0;
+        for (int i = 4; i < fields.length; i += 2) {
+            File file = new File(fields[i]);
+            sources.add(new MergeSource(file, PageSelection.parse(fields[i + 1])));
+            totalBytes += file.length();
+        }
+
+        MergePlan plan = new MergePlan(strategy, sources.size(), totalBytes, memoryThreshold, memoryThreshold);
+        PdfMerger.mergeTo(sources, plan, output);
+    }
+
+    /**
+     * Build the request line for a merge
+     *
+     * @param sources
+     * @param plan
+     * @param output
+     * @return
+     */
+    public static String createRequest(List<MergeSource> sources, MergePlan plan, File output) {
+        StringBuilder sb = new StringBuilder(MERGE);
+        sb.append(SEPARATOR).append(plan.getStrategy().name());
+        sb.append(SEPARATOR).append(plan.getMemoryThreshold());
+        sb.append(SEPARATOR).append(checkField(output.getAbsolutePath()));
+        for (MergeSource source : sources) {
+            sb.append(SEPARATOR).append(checkField(source.getFile().getAbsolutePath()));
+            sb.append(SEPARATOR).append(checkField(source.getPages().toString()));
+        }
+        return sb.toString();
+    }
+
+    private static String checkField(String value) {
+        if (value.contains(SEPARATOR) || value.contains("\n") || value.contains("\r")) {
+            throw new IllegalArgumentException("Unsupported character in \"" + value + "\"");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,288 @@
+package org.joget.marketplace;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.joget.commons.util.LogUtil;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+
+/**
+ * Pool of child JVMs running {@link MergeWorker}, so that PDFBox memory use
+ * during a merge stays out of the application server heap.
+ *
+ * Workers are started on demand up to the pool size and reused between
+ * merges. A worker that exceeds the timeout is killed, and a worker that dies
+ * or has run too many merges is replaced by a new one on the next merge.
+ *
+ * Settings are JVM wide system properties: "mergepdf.worker.size",
+ * "mergepdf.worker.heap" (e.g. 512m), "mergepdf.worker.timeout" (ms),
+ * "mergepdf.worker.maxJobs" and "mergepdf.worker.classpath". Without a
+ * classpath, the plugin classes and embedded libraries are extracted from the
+ * bundle to a temp directory.
+ */
+public class MergeWorkerPool {
+
+    private static MergeWorkerPool instance;
+
+    private final String heap;
+    private final long timeout;
+    private final int maxJobs;
+    private final Semaphore slots;
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService watchdog;
+    private File extractDirectory;
+    private String classpath;
+    private volatile boolean closed;
+
+    protected static class Worker {
+
+        private final Process process;
+        private final BufferedWriter in;
+        private final BufferedReader out;
+        private int jobs;
+
+        protected Worker(Process process) {
+            this.process = process;
+            this.in = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        protected String execute(String request) throws IOException {
+            jobs++;
+            in.write(request);
+            in.newLine();
+            in.flush();
+            return out.readLine();
+        }
+
+        protected boolean isAlive() {
+            return process.isAlive();
+        }
+
+        protected void destroy() {
+            process.destroyForcibly();
+        }
+    }
+
+    protected MergeWorkerPool(int size, String heap, long timeout, int maxJobs, String classpath) {
+        this.heap = heap;
+        this.timeout = timeout;
+        this.maxJobs = maxJobs;
+        this.classpath = classpath;
+        this.slots = new Semaphore(size, true);
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "merge-pdf-worker-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static synchronized MergeWorkerPool getInstance() {
+        if (instance == null) {
+            instance = new MergeWorkerPool(
+                    Integer.getInteger("mergepdf.worker.size", 2),
+                    System.getProperty("mergepdf.worker.heap", "512m"),
+                    Long.getLong("mergepdf.worker.timeout", 5L * 60 * 1000),
+                    Integer.getInteger("mergepdf.worker.maxJobs", 100),
+                    System.getProperty("mergepdf.worker.classpath"));
+        }
+        return instance;
+    }
+
+    /**
+     * Stop all workers, called when the bundle stops
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Merge the sources into the output file in a worker process
+     *
+     * @param sources
+     * @param plan
+     * @param output
+     * @throws IOException
+     */
+    public void merge(List<MergeSource> sources, MergePlan plan, File output) throws IOException {
+        String request = MergeWorker.createRequest(sources, plan, output);
+        try {
+            if (!slots.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a merge worker");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a merge worker", e);
+        }
+
+        Worker worker = null;
+        boolean healthy = false;
+        try {
+            worker = takeWorker();
+            final Worker running = worker;
+            ScheduledFuture<?> kill = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    running.destroy();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+
+            String response;
+            try {
+                response = worker.execute(request);
+            } catch (IOException e) {
+                throw new IOException("Merge worker failed or timed out after " + timeout + " ms", e);
+            } finally {
+                kill.cancel(false);
+            }
+
+            if (response == null) {
+                throw new IOException("Merge worker exited or timed out after " + timeout + " ms");
+            }
+            if (!MergeWorker.OK.equals(response)) {
+                // a failed worker may be exiting (out of memory) or left in a bad state, so never reuse it
+                String[] error = response.split(MergeWorker.SEPARATOR, 2);
+                throw new IOException("Merge worker error: " + ((error.length > 1) ? error[1] : response));
+            }
+            healthy = true;
+        } finally {
+            if (worker != null) {
+                if (healthy && !closed && worker.isAlive() && worker.jobs < maxJobs) {
+                    idle.offer(worker);
+                } else {
+                    worker.destroy();
+                }
+            }
+            slots.release();
+        }
+    }
+
+    protected Worker takeWorker() throws IOException {
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            if (worker.isAlive()) {
+                return worker;
+            }
+            LogUtil.warn(getClass().getName(), "Replacing a merge worker that exited");
+        }
+        return startWorker();
+    }
+
+    protected Worker startWorker() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Xmx" + heap);
+        command.add("-Djava.awt.headless=true");
+        command.add("-cp");
+        command.add(getClasspath());
+        command.add(MergeWorker.class.getName());
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        LogUtil.info(getClass().getName(), "Started merge worker with heap " + heap);
+        return new Worker(process);
+    }
+
+    protected synchronized String getClasspath() throws IOException {
+        if (classpath == null || classpath.isEmpty()) {
+            Bundle bundle = FrameworkUtil.getBundle(MergeWorker.class);
+            classpath = (bundle != null) ? extractBundleClasspath(bundle) : getCodeSourceClasspath();
+        }
+        return classpath;
+    }
+
+    /**
+     * Copy the plugin classes and the embedded libraries out of the bundle, as
+     * a child JVM cannot read jars nested in the bundle jar
+     */
+    protected String extractBundleClasspath(Bundle bundle) throws IOException {
+        extractDirectory = Files.createTempDirectory("merge-pdf-worker-").toFile();
+        File classes = new File(extractDirectory, "classes");
+        String packagePath = MergeWorker.class.getPackage().getName().replace('.', '/');
+
+        StringBuilder sb = new StringBuilder(classes.getAbsolutePath());
+        Enumeration<URL> classEntries = bundle.findEntries(packagePath, "*.class", false);
+        while (classEntries != null && classEntries.hasMoreElements()) {
+            URL entry = classEntries.nextElement();
+            copy(entry, new File(classes, entry.getPath()));
+        }
+        Enumeration<URL> jarEntries = bundle.findEntries("dependency", "*.jar", false);
+        while (jarEntries != null && jarEntries.hasMoreElements()) {
+            URL entry = jarEntries.nextElement();
+            File jar = new File(extractDirectory, entry.getPath());
+            copy(entry, jar);
+            sb.append(File.pathSeparator).append(jar.getAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Classpath from the locations the classes were loaded from, when not
+     * running in OSGi
+     */
+    protected String getCodeSourceClasspath() throws IOException {
+        String[] classNames = {
+            MergeWorker.class.getName(),
+            "org.apache.pdfbox.pdmodel.PDDocument",
+            "org.apache.fontbox.FontBoxFont",
+            "org.apache.commons.logging.Log",
+            "org.apache.commons.io.FileUtils"
+        };
+        Set<String> paths = new LinkedHashSet<>();
+        for (String className : classNames) {
+            try {
+                URL location = Class.forName(className).getProtectionDomain().getCodeSource().getLocation();
+                paths.add(new File(location.toURI()).getAbsolutePath());
+            } catch (ClassNotFoundException | URISyntaxException | NullPointerException | IllegalArgumentException e) {
+                throw new IOException("Cannot locate " + className + " for the merge worker, set mergepdf.worker.classpath", e);
+            }
+        }
+        return String.join(File.pathSeparator, paths);
+    }
+
+    private void copy(URL entry, File target) throws IOException {
+        try (InputStream in = entry.openStream()) {
+            FileUtils.copyInputStreamToFile(in, target);
+        }
+    }
+
+    protected void close() {
+        closed = true;
+        watchdog.shutdownNow();
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            worker.destroy();
+        }
+        if (extractDirectory != null) {
+            FileUtils.deleteQuietly(extractDirectory);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.joget.marketplace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Result of a merge, held either as bytes or as a file on disk. Temporary
+ * files are deleted on close. Files shared through the result store are
+ * touched while being read so that they are not evicted under the reader.
+ */
+public class MergedPdf implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] bytes;
+    private final File file;
+    private final boolean temporary;
+    private final long touchInterval;
+
+    protected MergedPdf(byte[] bytes, File file, boolean temporary, long touchInterval) {
+        this.bytes = bytes;
+        this.file = file;
+        this.temporary = temporary;
+        this.touchInterval = touchInterval;
+    }
+
+    public static MergedPdf ofBytes(byte[] bytes) {
+        return new MergedPdf(bytes, null, false, 0);
+    }
+
+    /**
+     * @param file
+     * @param temporary whether the file is deleted on close
+     * @return
+     */
+    public static MergedPdf ofFile(File file, boolean temporary) {
+        return new MergedPdf(null, file, temporary, 0);
+    }
+
+    /**
+     * @param file a result file shared with other nodes
+     * @param touchInterval how often to refresh its last modified time while reading
+     * @return
+     */
+    public static MergedPdf ofStoredFile(File file, long touchInterval) {
+        return new MergedPdf(null, file, false, touchInterval);
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isTemporary() {
+        return temporary;
+    }
+
+    /**
+     * Mark a file shared through the result store as still in use
+     */
+    public void touch() {
+        if (file != null && touchInterval > 0) {
+            file.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    public long length() {
+        return (file != null) ? file.length() : bytes.length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        if (file == null) {
+            out.write(bytes);
+        } else if (touchInterval > 0) {
+            copyTouching(out);
+        } else {
+            FileUtils.copyFile(file, out);
+        }
+    }
+
+    protected void copyTouching(OutputStream out) throws IOException {
+        long lastTouch = System.currentTimeMillis();
+        file.setLastModified(lastTouch);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                long now = System.currentTimeMillis();
+                if (now - lastTouch > touchInterval) {
+                    file.setLastModified(now);
+                    lastTouch = now;
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the content to the target file. A temporary file is moved rather
+     * than copied.
+     *
+     * @param target
+     * @throws IOException
+     */
+    public void saveTo(File target) throws IOException {
+        if (file == null) {
+            FileUtils.writeByteArrayToFile(target, bytes);
+        } else if (temporary) {
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else if (touchInterval > 0) {
+            try (OutputStream out = new FileOutputStream(target)) {
+                copyTouching(out);
+            }
+        } else {
+            FileUtils.copyFile(file, target);
+        }
+    }
+
+    public byte[] toByteArray() throws IOException {
+        return (file != null) ? FileUtils.readFileToByteArray(file) : bytes;
+    }
+
+    @Override
+    public void close() {
+        if (file != null && temporary) {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+}
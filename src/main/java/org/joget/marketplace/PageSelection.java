@@ -0,0 +1,117 @@
+package org.joget.marketplace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Pages to take from a source PDF, written as a comma separated list of page
+ * numbers and ranges starting from 1, where "last" is the last page, e.g.
+ * "1-5,last" or "3-". An empty selection takes all pages.
+ */
+public class PageSelection {
+
+    public static final PageSelection ALL = new PageSelection("", Collections.<int[]>emptyList());
+
+    private static final int LAST = -1;
+
+    private final String expression;
+    private final List<int[]> ranges;
+
+    protected PageSelection(String expression, List<int[]> ranges) {
+        this.expression = expression;
+        this.ranges = ranges;
+    }
+
+    /**
+     * Parse a page selection
+     *
+     * @param expression
+     * @return
+     * @throws IllegalArgumentException when the expression is invalid
+     */
+    public static PageSelection parse(String expression) {
+        if (expression == null || expression.trim().isEmpty()) {
+            return ALL;
+        }
+
+        List<int[]> ranges = new ArrayList<>();
+        for (String token : expression.split(",")) {
+            token = token.trim();
+            if (token.isEmpty()) {
+                continue;
+            }
+            int dash = token.indexOf('-');
+            if (dash == -1) {
+                int page = parseBound(token, expression);
+                ranges.add(new int[]{page, page});
+            } else {
+                int start = parseBound(token.substring(0, dash).trim(), expression);
+                String end = token.substring(dash + 1).trim();
+                ranges.add(new int[]{start, end.isEmpty() ? LAST : parseBound(end, expression)});
+            }
+        }
+        return ranges.isEmpty() ? ALL : new PageSelection(expression.trim(), ranges);
+    }
+
+    /**
+     * Parse a configured page selection, taking all pages when it is invalid
+     *
+     * @param expression
+     * @return
+     */
+    public static PageSelection fromConfig(String expression) {
+        try {
+            return parse(expression);
+        } catch (IllegalArgumentException e) {
+            LogUtil.warn(PageSelection.class.getName(), e.getMessage() + ", using all pages.");
+            return ALL;
+        }
+    }
+
+    private static int parseBound(String bound, String expression) {
+        if ("last".equalsIgnoreCase(bound)) {
+            return LAST;
+        }
+        try {
+            int page = Integer.parseInt(bound);
+            if (page > 0) {
+                return page;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new IllegalArgumentException("Invalid page selection \"" + expression + "\"");
+    }
+
+    public boolean isAll() {
+        return ranges.isEmpty();
+    }
+
+    /**
+     * Whether the page is selected
+     *
+     * @param pageNumber page number starting from 1
+     * @param pageCount number of pages in the document
+     * @return
+     */
+    public boolean includes(int pageNumber, int pageCount) {
+        if (isAll()) {
+            return true;
+        }
+        for (int[] range : ranges) {
+            int start = (range[0] == LAST) ? pageCount : range[0];
+            int end = (range[1] == LAST) ? pageCount : range[1];
+            if (pageNumber >= Math.min(start, end) && pageNumber <= Math.max(start, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -0,0 +1,283 @@
+package org.joget.marketplace;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDDocumentNameDictionary;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.action.PDAction;
+import org.apache.pdfbox.pdmodel.interactive.action.PDActionGoTo;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationLink;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationWidget;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.destination.PDDestination;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.destination.PDPageDestination;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDField;
+import org.apache.pdfbox.pdmodel.interactive.form.PDNonTerminalField;
+import org.apache.pdfbox.pdmodel.interactive.form.PDTerminalField;
+
+/**
+ * Merges PDF files with PDFBox following a {@link MergePlan}
+ */
+public class PdfMerger {
+
+    // commons-logging rather than LogUtil, as this also runs in MergeWorker processes without Joget
+    private static final Log LOG = LogFactory.getLog(PdfMerger.class);
+
+    private PdfMerger() {
+    }
+
+    /**
+     * Merge the sources in order, into memory or into a temp file depending on
+     * the plan
+     *
+     * @param sources
+     * @param plan
+     * @return
+     * @throws IOException
+     */
+    public static MergedPdf merge(List<MergeSource> sources, MergePlan plan) throws IOException {
+        return merge(sources, plan, false);
+    }
+
+    /**
+     * Merge the sources in order, optionally in a worker process of
+     * {@link MergeWorkerPool} instead of this JVM
+     *
+     * @param sources
+     * @param plan
+     * @param isolated
+     * @return
+     * @throws IOException
+     */
+    public static MergedPdf merge(List<MergeSource> sources, MergePlan plan, boolean isolated) throws IOException {
+        if (plan.isSpooled() || isolated) {
+            File output = File.createTempFile("merged-", ".pdf");
+            try {
+                mergeTo(sources, plan, output, isolated);
+                if (!plan.isSpooled()) {
+                    MergedPdf result = MergedPdf.ofBytes(FileUtils.readFileToByteArray(output));
+                    FileUtils.deleteQuietly(output);
+                    return result;
+                }
+            } catch (IOException | RuntimeException e) {
+                FileUtils.deleteQuietly(output);
+                throw e;
+            }
+            return MergedPdf.ofFile(output, true);
+        }
+
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            merge(sources, plan, out);
+            return MergedPdf.ofBytes(out.toByteArray());
+        }
+    }
+
+    /**
+     * Merge the sources in order into the target file
+     *
+     * @param sources
+     * @param plan
+     * @param target
+     * @throws IOException
+     */
+    public static void mergeTo(List<MergeSource> sources, MergePlan plan, File target) throws IOException {
+        mergeTo(sources, plan, target, false);
+    }
+
+    /**
+     * Merge the sources in order into the target file, optionally in a worker
+     * process of {@link MergeWorkerPool} instead of this JVM
+     *
+     * @param sources
+     * @param plan
+     * @param target
+     * @param isolated
+     * @throws IOException
+     */
+    public static void mergeTo(List<MergeSource> sources, MergePlan plan, File target, boolean isolated) throws IOException {
+        if (isolated) {
+            MergeWorkerPool.getInstance().merge(sources, plan, target);
+            return;
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            merge(sources, plan, out);
+        }
+    }
+
+    protected static void merge(List<MergeSource> sources, MergePlan plan, OutputStream out) throws IOException {
+        boolean allPages = true;
+        for (MergeSource source : sources) {
+            allPages &= source.getPages().isAll();
+        }
+
+        if (allPages) {
+            PDFMergerUtility merger = new PDFMergerUtility();
+            for (MergeSource source : sources) {
+                merger.addSource(source.getFile());
+            }
+            merger.setDestinationStream(out);
+            merger.mergeDocuments(plan.getMemoryUsageSetting());
+        } else {
+            mergeSelectedPages(sources, plan.getMemoryUsageSetting(), out);
+        }
+    }
+
+    /**
+     * Merge only the selected pages. Unselected pages are removed from each
+     * source, along with everything that would still point to them, before it
+     * is appended, so their content is never read or copied. Sources stay open
+     * until the result is saved as it shares their objects. A source with
+     * none of its pages selected, such as "5-8" on a 3 page file, is skipped
+     * with a warning.
+     *
+     * @throws IOException when the selections match no page of any source
+     */
+    protected static void mergeSelectedPages(List<MergeSource> sources, MemoryUsageSetting memoryUsageSetting, OutputStream out) throws IOException {
+        PDFMergerUtility merger = new PDFMergerUtility();
+        List<PDDocument> opened = new ArrayList<>();
+        // same split of the memory budget as PDFMergerUtility.mergeDocuments
+        MemoryUsageSetting partitioned = memoryUsageSetting.getPartitionedCopy(sources.size() + 1);
+        try (PDDocument destination = new PDDocument(partitioned)) {
+            for (MergeSource source : sources) {
+                PDDocument document = PDDocument.load(source.getFile(), partitioned);
+                opened.add(document);
+
+                PageSelection pages = source.getPages();
+                int pageCount = document.getNumberOfPages();
+                for (int i = pageCount; i >= 1; i--) {
+                    if (!pages.includes(i, pageCount)) {
+                        document.removePage(i - 1);
+                    }
+                }
+                if (document.getNumberOfPages() == 0) {
+                    LOG.warn("Page selection \"" + pages + "\" matches none of the " + pageCount + " page(s) of " + source.getFile().getName() + ", skipping it");
+                    continue;
+                }
+                if (document.getNumberOfPages() < pageCount) {
+                    pruneRemovedPages(document);
+                }
+                merger.appendDocument(destination, document);
+            }
+            if (destination.getNumberOfPages() == 0) {
+                throw new IOException("Page selections match no page of the " + sources.size() + " source(s)");
+            }
+            destination.save(out);
+        } finally {
+            for (PDDocument document : opened) {
+                document.close();
+            }
+        }
+    }
+
+    /**
+     * Drop the document level structures that reference pages by object, since
+     * appendDocument clones them along with every page they reach: the outline,
+     * named destinations, open action, page labels, structure tree and article
+     * beads. Links to removed pages are dropped, and form fields without a
+     * widget on a remaining page are removed from the AcroForm.
+     */
+    protected static void pruneRemovedPages(PDDocument document) throws IOException {
+        PDDocumentCatalog catalog = document.getDocumentCatalog();
+        catalog.getCOSObject().removeItem(COSName.OUTLINES);
+        catalog.getCOSObject().removeItem(COSName.DESTS);
+        catalog.getCOSObject().removeItem(COSName.OPEN_ACTION);
+        catalog.getCOSObject().removeItem(COSName.PAGE_LABELS);
+        catalog.getCOSObject().removeItem(COSName.STRUCT_TREE_ROOT);
+        PDDocumentNameDictionary names = catalog.getNames();
+        if (names != null) {
+            names.getCOSObject().removeItem(COSName.DESTS);
+        }
+
+        Set<COSDictionary> keptPages = new HashSet<>();
+        for (PDPage page : document.getPages()) {
+            keptPages.add(page.getCOSObject());
+        }
+
+        Set<COSDictionary> keptAnnotations = new HashSet<>();
+        for (PDPage page : document.getPages()) {
+            page.getCOSObject().removeItem(COSName.B);
+            List<PDAnnotation> annotations = page.getAnnotations();
+            boolean removed = false;
+            Iterator<PDAnnotation> it = annotations.iterator();
+            while (it.hasNext()) {
+                PDAnnotation annotation = it.next();
+                if (annotation instanceof PDAnnotationLink && !isLinkKept((PDAnnotationLink) annotation, keptPages)) {
+                    it.remove();
+                    removed = true;
+                } else {
+                    keptAnnotations.add(annotation.getCOSObject());
+                }
+            }
+            if (removed) {
+                page.setAnnotations(annotations);
+            }
+        }
+
+        PDAcroForm acroForm = catalog.getAcroForm();
+        if (acroForm != null) {
+            List<PDField> fields = new ArrayList<>();
+            for (PDField field : acroForm.getFields()) {
+                if (pruneWidgets(field, keptAnnotations)) {
+                    fields.add(field);
+                }
+            }
+            acroForm.setFields(fields);
+        }
+    }
+
+    private static boolean isLinkKept(PDAnnotationLink link, Set<COSDictionary> keptPages) throws IOException {
+        PDDestination destination = link.getDestination();
+        PDAction action = link.getAction();
+        if (destination == null && action instanceof PDActionGoTo) {
+            destination = ((PDActionGoTo) action).getDestination();
+        }
+        if (destination instanceof PDPageDestination) {
+            PDPage target = ((PDPageDestination) destination).getPage();
+            return target == null || keptPages.contains(target.getCOSObject());
+        }
+        return true;
+    }
+
+    /**
+     * Detach the widgets of the field that are no longer on a page from their
+     * removed page
+     *
+     * @return whether the field still has a widget on a remaining page
+     */
+    private static boolean pruneWidgets(PDField field, Set<COSDictionary> keptAnnotations) {
+        boolean kept = false;
+        if (field instanceof PDNonTerminalField) {
+            for (PDField child : ((PDNonTerminalField) field).getChildren()) {
+                kept |= pruneWidgets(child, keptAnnotations);
+            }
+        } else if (field instanceof PDTerminalField) {
+            for (PDAnnotationWidget widget : ((PDTerminalField) field).getWidgets()) {
+                if (keptAnnotations.contains(widget.getCOSObject())) {
+                    kept = true;
+                } else {
+                    widget.getCOSObject().removeItem(COSName.P);
+                }
+            }
+        }
+        return kept;
+    }
+}
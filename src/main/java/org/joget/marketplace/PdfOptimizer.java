@@ -0,0 +1,150 @@
+package org.joget.marketplace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.joget.commons.util.LogUtil;
+
+/**
+ * Rewrites merged PDFs with qpdf for what PDFBox 2.0 cannot do itself:
+ * linearizing the output for fast web view, and packing objects into
+ * compressed object streams with a cross-reference stream (PDF 1.5). When
+ * qpdf is missing or fails, the merged PDF is kept as it is.
+ *
+ * The qpdf executable is set for the whole server with the system property
+ * "mergepdf.qpdf.path", never from plugin properties, so that app designers
+ * cannot choose what the server runs.
+ */
+public class PdfOptimizer {
+
+    public static final String DEFAULT_QPDF_PATH = "qpdf";
+
+    private static final long TIMEOUT = 5L * 60 * 1000;
+
+    private final String qpdfPath;
+    private final boolean linearize;
+    private final boolean compressObjects;
+
+    public PdfOptimizer(boolean linearize, boolean compressObjects) {
+        String path = System.getProperty("mergepdf.qpdf.path");
+        this.qpdfPath = (path != null && !path.trim().isEmpty()) ? path.trim() : DEFAULT_QPDF_PATH;
+        this.linearize = linearize;
+        this.compressObjects = compressObjects;
+    }
+
+    public boolean isEnabled() {
+        return linearize || compressObjects;
+    }
+
+    /**
+     * Options affecting the output, to be part of any result fingerprint
+     *
+     * @return
+     */
+    public String getVariant() {
+        return isEnabled() ? "linearize=" + linearize + ";compressObjects=" + compressObjects : "";
+    }
+
+    /**
+     * Optimize the merged PDF, returning the optimized result or the original
+     * when optimization fails. The original is closed when replaced.
+     *
+     * @param pdf
+     * @return
+     */
+    public MergedPdf optimize(MergedPdf pdf) {
+        if (!isEnabled() || pdf == null) {
+            return pdf;
+        }
+
+        File input = null;
+        File output = null;
+        try {
+            if (pdf.isInMemory()) {
+                input = File.createTempFile("merged-", ".pdf");
+                FileUtils.writeByteArrayToFile(input, pdf.toByteArray());
+            }
+            output = File.createTempFile("optimized-", ".pdf");
+            run(pdf.isInMemory() ? input : pdf.getFile(), output);
+
+            MergedPdf result;
+            if (pdf.isInMemory()) {
+                result = MergedPdf.ofBytes(FileUtils.readFileToByteArray(output));
+                FileUtils.deleteQuietly(output);
+            } else {
+                result = MergedPdf.ofFile(output, true);
+            }
+            pdf.close();
+            return result;
+        } catch (IOException e) {
+            LogUtil.error(getClass().getName(), e, "Fail to optimize merged PDF, keeping it as is");
+            FileUtils.deleteQuietly(output);
+            return pdf;
+        } finally {
+            FileUtils.deleteQuietly(input);
+        }
+    }
+
+    /**
+     * Optimize the file in place, keeping it as is when optimization fails
+     *
+     * @param file
+     */
+    public void optimize(File file) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        // keep the .tmp suffix so the result store cleans it up if the node dies
+        File output = new File(file.getParentFile(), file.getName() + ".opt.tmp");
+        try {
+            run(file, output);
+            Files.move(output.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LogUtil.error(getClass().getName(), e, "Fail to optimize " + file.getName() + ", keeping it as is");
+        } finally {
+            FileUtils.deleteQuietly(output);
+        }
+    }
+
+    protected void run(File input, File output) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(qpdfPath);
+        if (linearize) {
+            command.add("--linearize");
+        }
+        if (compressObjects) {
+            // qpdf writes a cross-reference stream whenever object streams are generated
+            command.add("--object-streams=generate");
+            command.add("--compress-streams=y");
+        }
+        command.add(input.getAbsolutePath());
+        command.add(output.getAbsolutePath());
+
+        File log = File.createTempFile("qpdf-", ".log");
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+            if (!process.waitFor(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+                throw new IOException("qpdf timed out after " + TIMEOUT + " ms");
+            }
+            // exit code 3 means the output was written with warnings
+            int exitCode = process.exitValue();
+            if (exitCode != 0 && exitCode != 3) {
+                throw new IOException("qpdf exited with " + exitCode + ": " + new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8).trim());
+            }
+            LogUtil.info(getClass().getName(), "Optimized merged PDF from " + input.length() + " to " + output.length() + " bytes");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running qpdf", e);
+        } finally {
+            FileUtils.deleteQuietly(log);
+        }
+    }
+}
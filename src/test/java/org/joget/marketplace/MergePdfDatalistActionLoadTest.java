@@ -0,0 +1,407 @@
+package org.joget.marketplace;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.joget.apps.app.model.AppDefinition;
+import org.joget.apps.app.service.AppService;
+import org.joget.apps.form.lib.FileUpload;
+import org.joget.apps.form.model.Element;
+import org.joget.apps.form.model.Form;
+import org.joget.apps.form.model.FormData;
+import org.joget.apps.form.service.FormUtil;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Load test of {@link MergePdfDatalistAction#executeAction}: N clients each
+ * run M exports concurrently against generated PDFs. Records are loaded by the
+ * action itself from a stand-in AppService, whose form has an upload field
+ * listing the record's PDFs, and the servlet request and response are
+ * stand-ins too. Every response must be a PDF, or a zip of one PDF per row,
+ * with the expected number of pages.
+ *
+ * Reports latency percentiles, throughput, peak heap and GC time. It does
+ * nothing unless the system property "mergepdf.load" is true, and the size of
+ * the run can be raised with the system properties "mergepdf.load.clients",
+ * "mergepdf.load.exports", "mergepdf.load.rows", "mergepdf.load.sources",
+ * "mergepdf.load.pages", "mergepdf.load.pageRange" and
+ * "mergepdf.load.isolated". Surefire only passes them to the test JVM through
+ * argLine, e.g.
+ * mvn test -Dtest=MergePdfDatalistActionLoadTest -DargLine="-Dmergepdf.load=true -Dmergepdf.load.clients=32"
+ */
+public class MergePdfDatalistActionLoadTest {
+
+    private static final int CLIENTS = Integer.getInteger("mergepdf.load.clients", 4);
+    private static final int EXPORTS = Integer.getInteger("mergepdf.load.exports", 5);
+    private static final int ROWS = Integer.getInteger("mergepdf.load.rows", 3);
+    private static final int SOURCES = Integer.getInteger("mergepdf.load.sources", 3);
+    private static final int PAGES = Integer.getInteger("mergepdf.load.pages", 5);
+    private static final PageSelection PAGE_RANGE = PageSelection.parse(System.getProperty("mergepdf.load.pageRange", ""));
+    private static final boolean ISOLATED = Boolean.getBoolean("mergepdf.load.isolated");
+
+    private static final String FORM_ID = "loadTest";
+    private static final String FIELD_ID = "files";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testConcurrentExports() throws Exception {
+        Assume.assumeTrue("Set -Dmergepdf.load=true to run the load test", Boolean.getBoolean("mergepdf.load"));
+
+        final File uploads = folder.newFolder("uploads");
+        final int sourceCount = Math.max(SOURCES, ROWS + SOURCES);
+        generatePdfs(uploads, sourceCount);
+        final int expectedPages = SOURCES * getSelectedPageCount();
+        Assert.assertTrue("Page range \"" + PAGE_RANGE + "\" selects no page of " + PAGES, expectedPages > 0);
+
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        final CountDownLatch ready = new CountDownLatch(CLIENTS);
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Future<List<Long>>> results = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            final String username = "load-user-" + c;
+            results.add(clients.submit(new Callable<List<Long>>() {
+                @Override
+                public List<Long> call() throws Exception {
+                    List<Long> latencies = new ArrayList<>();
+                    LoadTestAction action = new LoadTestAction(uploads, sourceCount, username);
+                    ready.countDown();
+                    go.await();
+                    for (int e = 0; e < EXPORTS; e++) {
+                        String[] rowKeys = rowKeys(e);
+                        long start = System.nanoTime();
+                        byte[] body = action.export(rowKeys);
+                        latencies.add(System.nanoTime() - start);
+                        verify(body, rowKeys, expectedPages, "Export " + e + " of " + username);
+                    }
+                    return latencies;
+                }
+            }));
+        }
+
+        ready.await();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long gcTime = getGcTime();
+        long gcCount = getGcCount();
+        long start = System.nanoTime();
+        go.countDown();
+
+        List<Long> latencies = new ArrayList<>();
+        try {
+            for (Future<List<Long>> result : results) {
+                latencies.addAll(result.get());
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        Collections.sort(latencies);
+
+        System.out.println(String.format("Merge export load test: %d client(s) x %d export(s) of %d row(s), %d source(s) of %d page(s) per row, page range \"%s\"%s",
+                CLIENTS, EXPORTS, ROWS, SOURCES, PAGES, PAGE_RANGE, ISOLATED ? ", isolated" : ""));
+        System.out.println(String.format("  latency p50 %d ms, p95 %d ms, p99 %d ms, max %d ms",
+                percentile(latencies, 50), percentile(latencies, 95), percentile(latencies, 99), percentile(latencies, 100)));
+        System.out.println(String.format("  throughput %.2f export(s)/s over %d ms",
+                latencies.size() * 1000.0 / Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsed)), TimeUnit.NANOSECONDS.toMillis(elapsed)));
+        System.out.println(String.format("  peak heap %d MB, GC %d ms in %d collection(s)",
+                peakHeap / (1024 * 1024), getGcTime() - gcTime, getGcCount() - gcCount));
+
+        Assert.assertEquals(CLIENTS * EXPORTS, latencies.size());
+    }
+
+    /**
+     * Row keys of an export, shifted for every export so that the source sets
+     * differ between exports
+     */
+    protected String[] rowKeys(int export) {
+        String[] keys = new String[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            keys[i] = String.valueOf(export + i);
+        }
+        return keys;
+    }
+
+    /**
+     * Check that a response holds the merged PDF of its single row, or a zip
+     * with the merged PDF of each row in order
+     */
+    protected void verify(byte[] body, String[] rowKeys, int expectedPages, String export) throws IOException {
+        if (rowKeys.length == 1) {
+            assertPdf(body, expectedPages, export);
+            return;
+        }
+
+        int entries = 0;
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(body))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                Assert.assertTrue(export + " has more entries than rows", entries < rowKeys.length);
+                Assert.assertEquals(export + " entry name", rowKeys[entries] + ".pdf", entry.getName());
+                assertPdf(IOUtils.toByteArray(zip), expectedPages, export + " entry " + entry.getName());
+                entries++;
+            }
+        }
+        Assert.assertEquals(export + " entry count", rowKeys.length, entries);
+    }
+
+    private static void assertPdf(byte[] content, int expectedPages, String name) throws IOException {
+        Assert.assertTrue(name + " is empty", content.length > 0);
+        try (PDDocument document = PDDocument.load(content)) {
+            Assert.assertEquals(name + " page count", expectedPages, document.getNumberOfPages());
+        }
+    }
+
+    private static int getSelectedPageCount() {
+        int count = 0;
+        for (int i = 1; i <= PAGES; i++) {
+            if (PAGE_RANGE.includes(i, PAGES)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    protected void generatePdfs(File directory, int count) throws IOException {
+        Random random = new Random(count);
+        for (int i = 0; i < count; i++) {
+            try (PDDocument document = new PDDocument()) {
+                for (int p = 0; p < PAGES; p++) {
+                    PDPage page = new PDPage(PDRectangle.A4);
+                    document.addPage(page);
+                    try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                        for (int r = 0; r < 200; r++) {
+                            content.setNonStrokingColor(random.nextFloat(), random.nextFloat(), random.nextFloat());
+                            content.addRect(random.nextFloat() * 500, random.nextFloat() * 750, 20 + random.nextFloat() * 80, 20 + random.nextFloat() * 80);
+                            content.fill();
+                        }
+                    }
+                }
+                document.save(new File(directory, getSourceName(i)));
+            }
+        }
+    }
+
+    private static String getSourceName(int index) {
+        return "source-" + index + ".pdf";
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(0, Math.min(index, sorted.size() - 1))));
+    }
+
+    private static long getGcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static long getGcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    /**
+     * Action loading records from a stand-in AppService and uploads from the
+     * generated PDFs, and writing to an in-memory response instead of the
+     * current request's
+     */
+    protected static class LoadTestAction extends MergePdfDatalistAction {
+
+        private final File uploads;
+        private final int sourceCount;
+        private final String username;
+        private ByteArrayOutputStream body;
+
+        public LoadTestAction(File uploads, int sourceCount, String username) {
+            this.uploads = uploads;
+            this.sourceCount = sourceCount;
+            this.username = username;
+        }
+
+        public byte[] export(String[] rowKeys) {
+            body = new ByteArrayOutputStream();
+            executeAction(null, rowKeys);
+            return body.toByteArray();
+        }
+
+        @Override
+        protected MergeExportContext createExportContext() {
+            AppDefinition appDef = new AppDefinition();
+            appDef.setId("loadTestApp");
+            appDef.setVersion(1L);
+            AppService appService = stub(AppService.class, new Answer() {
+                @Override
+                public Object answer(String method, Object[] args) {
+                    return "viewDataForm".equals(method) ? createForm((FormData) args[6]) : null;
+                }
+            });
+            return new MergeExportContext(appDef, appService, FORM_ID, FIELD_ID, PAGE_RANGE, "", "export", null,
+                    MergePlan.DEFAULT_MEMORY_THRESHOLD, MergePlan.DEFAULT_SPOOL_THRESHOLD, new PdfOptimizer(false, false), ISOLATED);
+        }
+
+        /**
+         * Form of a record, with an upload field holding the record's PDFs
+         * separated by semicolons as multiple uploads are stored
+         */
+        protected Form createForm(FormData formData) {
+            int row = Integer.parseInt(formData.getPrimaryKeyValue());
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < SOURCES; i++) {
+                names.add(getSourceName((row + i) % sourceCount));
+            }
+
+            Form form = new Form();
+            form.setProperty(FormUtil.PROPERTY_ID, FORM_ID);
+            form.setProperty(FormUtil.PROPERTY_TABLE_NAME, "load_test");
+            FileUpload field = new FileUpload();
+            field.setProperty(FormUtil.PROPERTY_ID, FIELD_ID);
+            field.setProperty(FormUtil.PROPERTY_VALUE, String.join(";", names));
+            field.setParent(form);
+            List<Element> children = new ArrayList<>();
+            children.add(field);
+            form.setChildren(children);
+            return form;
+        }
+
+        @Override
+        protected File getUploadedFile(String fileName, Form form, String primaryKey) {
+            // all records share the generated PDFs instead of an upload directory each
+            return new File(uploads, fileName);
+        }
+
+        @Override
+        protected HttpServletRequest getHttpServletRequest() {
+            final RequestDispatcher dispatcher = stub(RequestDispatcher.class, null);
+            return stub(HttpServletRequest.class, new Answer() {
+                @Override
+                public Object answer(String method, Object[] args) {
+                    if ("getMethod".equals(method)) {
+                        return "POST";
+                    }
+                    return "getRequestDispatcher".equals(method) ? dispatcher : null;
+                }
+            });
+        }
+
+        @Override
+        protected HttpServletResponse getHttpServletResponse() {
+            final ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    body.write(b, off, len);
+                }
+            };
+            return stub(HttpServletResponse.class, new Answer() {
+                @Override
+                public Object answer(String method, Object[] args) {
+                    return "getOutputStream".equals(method) ? out : null;
+                }
+            });
+        }
+
+        @Override
+        protected String getCurrentUsername() {
+            return username;
+        }
+    }
+
+    /**
+     * Return value of a stubbed method call
+     */
+    protected interface Answer {
+
+        /**
+         * @param method
+         * @param args
+         * @return the value, or null for the default
+         */
+        Object answer(String method, Object[] args);
+    }
+
+    /**
+     * Proxy returning the answer to each method call, and null, false or 0
+     * when there is none
+     *
+     * @param type
+     * @param answer
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    protected static <T> T stub(Class<T> type, final Answer answer) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                Object value = (answer != null) ? answer.answer(method.getName(), args) : null;
+                if (value != null) {
+                    return value;
+                } else if (method.getReturnType() == boolean.class) {
+                    return false;
+                } else if (method.getReturnType() == int.class) {
+                    return 0;
+                } else if (method.getReturnType() == long.class) {
+                    return 0L;
+                }
+                return null;
+            }
+        });
+    }
+}